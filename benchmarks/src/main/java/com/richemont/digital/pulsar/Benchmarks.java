@@ -0,0 +1,91 @@
+package com.richemont.digital.pulsar;
+
+/*-
+ * #%L
+ * pulsar-sap-em-connector
+ * %%
+ * Copyright (C) 2020 Richemont SA
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import org.apache.pulsar.functions.api.Record;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+
+/**
+ * Shared fixtures for the benchmarks.
+ */
+final class Benchmarks {
+
+    private Benchmarks() {
+    }
+
+    static Map<String, Object> config() {
+        Map<String, Object> config = new HashMap<>();
+        config.put("connectionName", "sap-em-benchmark");
+        config.put("xsappname", "benchmark");
+        config.put("clientID", "client");
+        config.put("clientSecret", "secret");
+        config.put("tokenEndpoint", "https://localhost/oauth/token");
+        config.put("serviceURL", "https://localhost");
+        config.put("destination", "queue:benchmark");
+        return config;
+    }
+
+    static byte[] payload(int size) {
+        byte[] payload = new byte[size];
+        Random random = new Random(size);
+        for(int i = 0; i < size; i++) {
+            payload[i] = (byte) ('a' + random.nextInt(26));
+        }
+        return payload;
+    }
+
+    static Map<String, String> properties(int count) {
+        Map<String, String> properties = new HashMap<>();
+        for(int i = 0; i < count; i++) {
+            properties.put("property" + i, "value" + i);
+        }
+        return properties;
+    }
+
+    static Record<byte[]> record(String key, byte[] value, Map<String, String> properties) {
+        return new Record<byte[]>() {
+            @Override
+            public Optional<String> getKey() {
+                return Optional.ofNullable(key);
+            }
+
+            @Override
+            public byte[] getValue() {
+                return value;
+            }
+
+            @Override
+            public Map<String, String> getProperties() {
+                return properties;
+            }
+        };
+    }
+}
@@ -0,0 +1,97 @@
+package com.richemont.digital.pulsar;
+
+/*-
+ * #%L
+ * pulsar-sap-em-connector
+ * %%
+ * Copyright (C) 2020 Richemont SA
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import org.apache.activemq.artemis.core.config.Configuration;
+import org.apache.activemq.artemis.core.config.impl.ConfigurationImpl;
+import org.apache.activemq.artemis.core.server.embedded.EmbeddedActiveMQ;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Non-persistent ActiveMQ Artemis broker accepting AMQP 1.0 connections on a free local port, standing in for
+ * SAP Enterprise Messaging.
+ */
+class EmbeddedBroker implements AutoCloseable {
+
+    // keep a reference, JUL only holds loggers weakly
+    private static final Logger BROKER_LOGGER = Logger.getLogger("org.apache.activemq");
+
+    static {
+        BROKER_LOGGER.setLevel(Level.WARNING);
+    }
+
+    private final EmbeddedActiveMQ server = new EmbeddedActiveMQ();
+    private final int port;
+
+    EmbeddedBroker() throws Exception {
+        port = freePort();
+        Path directory = Files.createTempDirectory("sap-em-broker");
+        Configuration configuration = new ConfigurationImpl()
+                .setPersistenceEnabled(false)
+                .setSecurityEnabled(false)
+                .setJMXManagementEnabled(false)
+                .addAcceptorConfiguration("amqp", "tcp://localhost:" + port + "?protocols=AMQP");
+        configuration.setBrokerInstance(directory.toFile());
+        server.setConfiguration(configuration);
+        server.start();
+    }
+
+    // -- AutoCloseable
+
+    @Override
+    public void close() throws Exception {
+        server.stop();
+    }
+
+    // -- EmbeddedBroker
+
+    /**
+     * @return a connector configuration connecting to the broker through the Qpid JMS client
+     */
+    Map<String, Object> config(String destination) {
+        Map<String, Object> config = new HashMap<>();
+        config.put("connectionName", "sap-em-harness");
+        config.put("connectionFactoryClass", "org.apache.qpid.jms.JmsConnectionFactory");
+        config.put("serviceURL", "amqp://localhost:" + port);
+        config.put("destination", destination);
+        return config;
+    }
+
+    private static int freePort() throws IOException {
+        try(ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
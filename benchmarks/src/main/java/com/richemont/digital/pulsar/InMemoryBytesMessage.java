@@ -0,0 +1,221 @@
+package com.richemont.digital.pulsar;
+
+/*-
+ * #%L
+ * pulsar-sap-em-connector
+ * %%
+ * Copyright (C) 2020 Richemont SA
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import javax.jms.BytesMessage;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * In-memory {@link BytesMessage}; written bytes become readable after {@link #reset()}.
+ */
+class InMemoryBytesMessage extends InMemoryMessage implements BytesMessage {
+
+    private ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private ByteBuffer in;
+
+    InMemoryBytesMessage() {
+    }
+
+    InMemoryBytesMessage(byte[] body) {
+        this.out = null;
+        this.in = ByteBuffer.wrap(body);
+    }
+
+    @Override
+    public long getBodyLength() {
+        return in == null ? out.size() : in.limit();
+    }
+
+    @Override
+    public void reset() {
+        if(in == null) {
+            in = ByteBuffer.wrap(out.toByteArray());
+            out = null;
+        } else {
+            in.rewind();
+        }
+    }
+
+    @Override
+    public void clearBody() {
+        in = null;
+        out = new ByteArrayOutputStream();
+    }
+
+    @Override
+    Object getBody() {
+        ByteBuffer buffer = in.duplicate();
+        buffer.rewind();
+        byte[] body = new byte[buffer.remaining()];
+        buffer.get(body);
+        return body;
+    }
+
+    // -- read
+
+    @Override
+    public boolean readBoolean() {
+        return in.get() != 0;
+    }
+
+    @Override
+    public byte readByte() {
+        return in.get();
+    }
+
+    @Override
+    public int readUnsignedByte() {
+        return in.get() & 0xff;
+    }
+
+    @Override
+    public short readShort() {
+        return in.getShort();
+    }
+
+    @Override
+    public int readUnsignedShort() {
+        return in.getShort() & 0xffff;
+    }
+
+    @Override
+    public char readChar() {
+        return in.getChar();
+    }
+
+    @Override
+    public int readInt() {
+        return in.getInt();
+    }
+
+    @Override
+    public long readLong() {
+        return in.getLong();
+    }
+
+    @Override
+    public float readFloat() {
+        return in.getFloat();
+    }
+
+    @Override
+    public double readDouble() {
+        return in.getDouble();
+    }
+
+    @Override
+    public String readUTF() {
+        byte[] bytes = new byte[in.getShort() & 0xffff];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public int readBytes(byte[] value) {
+        return readBytes(value, value.length);
+    }
+
+    @Override
+    public int readBytes(byte[] value, int length) {
+        if(!in.hasRemaining()) {
+            return -1;
+        }
+        int count = Math.min(length, in.remaining());
+        in.get(value, 0, count);
+        return count;
+    }
+
+    // -- write
+
+    @Override
+    public void writeBoolean(boolean value) {
+        out.write(value ? 1 : 0);
+    }
+
+    @Override
+    public void writeByte(byte value) {
+        out.write(value);
+    }
+
+    @Override
+    public void writeShort(short value) {
+        writeBytes(ByteBuffer.allocate(2).putShort(value).array());
+    }
+
+    @Override
+    public void writeChar(char value) {
+        writeBytes(ByteBuffer.allocate(2).putChar(value).array());
+    }
+
+    @Override
+    public void writeInt(int value) {
+        writeBytes(ByteBuffer.allocate(4).putInt(value).array());
+    }
+
+    @Override
+    public void writeLong(long value) {
+        writeBytes(ByteBuffer.allocate(8).putLong(value).array());
+    }
+
+    @Override
+    public void writeFloat(float value) {
+        writeBytes(ByteBuffer.allocate(4).putFloat(value).array());
+    }
+
+    @Override
+    public void writeDouble(double value) {
+        writeBytes(ByteBuffer.allocate(8).putDouble(value).array());
+    }
+
+    @Override
+    public void writeUTF(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeShort((short) bytes.length);
+        writeBytes(bytes);
+    }
+
+    @Override
+    public void writeBytes(byte[] value) {
+        out.write(value, 0, value.length);
+    }
+
+    @Override
+    public void writeBytes(byte[] value, int offset, int length) {
+        out.write(value, offset, length);
+    }
+
+    @Override
+    public void writeObject(Object value) {
+        if(value instanceof byte[]) {
+            writeBytes((byte[]) value);
+        } else {
+            writeUTF(String.valueOf(value));
+        }
+    }
+}
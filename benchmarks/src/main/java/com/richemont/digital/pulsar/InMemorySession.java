@@ -0,0 +1,234 @@
+package com.richemont.digital.pulsar;
+
+/*-
+ * #%L
+ * pulsar-sap-em-connector
+ * %%
+ * Copyright (C) 2020 Richemont SA
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import javax.jms.BytesMessage;
+import javax.jms.Destination;
+import javax.jms.MapMessage;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.MessageProducer;
+import javax.jms.ObjectMessage;
+import javax.jms.Queue;
+import javax.jms.QueueBrowser;
+import javax.jms.Session;
+import javax.jms.StreamMessage;
+import javax.jms.TemporaryQueue;
+import javax.jms.TemporaryTopic;
+import javax.jms.TextMessage;
+import javax.jms.Topic;
+import javax.jms.TopicSubscriber;
+import java.io.Serializable;
+
+/**
+ * In-memory {@link Session} creating {@link InMemoryBytesMessage} and {@link InMemoryTextMessage} instances; every
+ * other operation is unsupported.
+ */
+class InMemorySession implements Session {
+
+    @Override
+    public BytesMessage createBytesMessage() {
+        return new InMemoryBytesMessage();
+    }
+
+    @Override
+    public TextMessage createTextMessage() {
+        return new InMemoryTextMessage();
+    }
+
+    @Override
+    public TextMessage createTextMessage(String text) {
+        return new InMemoryTextMessage(text);
+    }
+
+    @Override
+    public boolean getTransacted() {
+        return false;
+    }
+
+    @Override
+    public int getAcknowledgeMode() {
+        return CLIENT_ACKNOWLEDGE;
+    }
+
+    @Override
+    public void commit() {
+    }
+
+    @Override
+    public void rollback() {
+    }
+
+    @Override
+    public void recover() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public void run() {
+    }
+
+    // -- unsupported
+
+    @Override
+    public MapMessage createMapMessage() {
+        throw unsupported();
+    }
+
+    @Override
+    public Message createMessage() {
+        throw unsupported();
+    }
+
+    @Override
+    public ObjectMessage createObjectMessage() {
+        throw unsupported();
+    }
+
+    @Override
+    public ObjectMessage createObjectMessage(Serializable object) {
+        throw unsupported();
+    }
+
+    @Override
+    public StreamMessage createStreamMessage() {
+        throw unsupported();
+    }
+
+    @Override
+    public MessageListener getMessageListener() {
+        throw unsupported();
+    }
+
+    @Override
+    public void setMessageListener(MessageListener listener) {
+        throw unsupported();
+    }
+
+    @Override
+    public MessageProducer createProducer(Destination destination) {
+        throw unsupported();
+    }
+
+    @Override
+    public MessageConsumer createConsumer(Destination destination) {
+        throw unsupported();
+    }
+
+    @Override
+    public MessageConsumer createConsumer(Destination destination, String messageSelector) {
+        throw unsupported();
+    }
+
+    @Override
+    public MessageConsumer createConsumer(Destination destination, String messageSelector, boolean noLocal) {
+        throw unsupported();
+    }
+
+    @Override
+    public MessageConsumer createSharedConsumer(Topic topic, String sharedSubscriptionName) {
+        throw unsupported();
+    }
+
+    @Override
+    public MessageConsumer createSharedConsumer(Topic topic, String sharedSubscriptionName, String messageSelector) {
+        throw unsupported();
+    }
+
+    @Override
+    public Queue createQueue(String queueName) {
+        throw unsupported();
+    }
+
+    @Override
+    public Topic createTopic(String topicName) {
+        throw unsupported();
+    }
+
+    @Override
+    public TopicSubscriber createDurableSubscriber(Topic topic, String name) {
+        throw unsupported();
+    }
+
+    @Override
+    public TopicSubscriber createDurableSubscriber(Topic topic, String name, String messageSelector, boolean noLocal) {
+        throw unsupported();
+    }
+
+    @Override
+    public MessageConsumer createDurableConsumer(Topic topic, String name) {
+        throw unsupported();
+    }
+
+    @Override
+    public MessageConsumer createDurableConsumer(Topic topic, String name, String messageSelector, boolean noLocal) {
+        throw unsupported();
+    }
+
+    @Override
+    public MessageConsumer createSharedDurableConsumer(Topic topic, String name) {
+        throw unsupported();
+    }
+
+    @Override
+    public MessageConsumer createSharedDurableConsumer(Topic topic, String name, String messageSelector) {
+        throw unsupported();
+    }
+
+    @Override
+    public QueueBrowser createBrowser(Queue queue) {
+        throw unsupported();
+    }
+
+    @Override
+    public QueueBrowser createBrowser(Queue queue, String messageSelector) {
+        throw unsupported();
+    }
+
+    @Override
+    public TemporaryQueue createTemporaryQueue() {
+        throw unsupported();
+    }
+
+    @Override
+    public TemporaryTopic createTemporaryTopic() {
+        throw unsupported();
+    }
+
+    @Override
+    public void unsubscribe(String name) {
+        throw unsupported();
+    }
+
+    private static UnsupportedOperationException unsupported() {
+        return new UnsupportedOperationException("not supported by the in-memory session");
+    }
+}
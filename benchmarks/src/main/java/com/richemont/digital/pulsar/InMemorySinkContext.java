@@ -0,0 +1,126 @@
+package com.richemont.digital.pulsar;
+
+/*-
+ * #%L
+ * pulsar-sap-em-connector
+ * %%
+ * Copyright (C) 2020 Richemont SA
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import org.apache.pulsar.io.core.SinkContext;
+import org.slf4j.Logger;
+import org.slf4j.helpers.NOPLogger;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * {@link SinkContext} discarding metrics and logs, with no state or counters.
+ */
+class InMemorySinkContext implements SinkContext {
+
+    @Override
+    public int getInstanceId() {
+        return 0;
+    }
+
+    @Override
+    public int getNumInstances() {
+        return 1;
+    }
+
+    @Override
+    public void recordMetric(String metricName, double value) {
+    }
+
+    @Override
+    public Collection<String> getInputTopics() {
+        return Collections.singleton("sap-em-topic");
+    }
+
+    @Override
+    public String getTenant() {
+        return "public";
+    }
+
+    @Override
+    public String getNamespace() {
+        return "default";
+    }
+
+    @Override
+    public String getSinkName() {
+        return "sap-em-sink";
+    }
+
+    @Override
+    public Logger getLogger() {
+        return NOPLogger.NOP_LOGGER;
+    }
+
+    @Override
+    public String getSecret(String secretName) {
+        return null;
+    }
+
+    @Override
+    public void incrCounter(String key, long amount) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public CompletableFuture<Void> incrCounterAsync(String key, long amount) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public long getCounter(String key) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public CompletableFuture<Long> getCounterAsync(String key) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void putState(String key, ByteBuffer value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public CompletableFuture<Void> putStateAsync(String key, ByteBuffer value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ByteBuffer getState(String key) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public CompletableFuture<ByteBuffer> getStateAsync(String key) {
+        throw new UnsupportedOperationException();
+    }
+}
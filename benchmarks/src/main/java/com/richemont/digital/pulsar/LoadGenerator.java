@@ -0,0 +1,221 @@
+package com.richemont.digital.pulsar;
+
+/*-
+ * #%L
+ * pulsar-sap-em-connector
+ * %%
+ * Copyright (C) 2020 Richemont SA
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import org.apache.pulsar.functions.api.Record;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs the source and sink end-to-end against an {@link EmbeddedBroker}: the sink writes records to a queue that the
+ * source consumes, and the throughput and end-to-end latency are reported for each payload size and parallelism.
+ * <p>
+ * A run fails if the source delivers no record for {@code stallTimeoutMs}, or if the sink fails any record.
+ * <p>
+ * Configured with the system properties {@code messages}, {@code payloadSizes}, {@code parallelism} and
+ * {@code stallTimeoutMs}, e.g.
+ * <pre>
+ * java -Dmessages=50000 -DpayloadSizes=1024,65536,204800 -Dparallelism=1,4 \
+ *     -cp benchmarks/target/benchmarks.jar com.richemont.digital.pulsar.LoadGenerator
+ * </pre>
+ */
+public final class LoadGenerator {
+
+    static final String SENT_NANOS = "loadGeneratorSentNanos";
+
+    private LoadGenerator() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int messages = Integer.getInteger("messages", 20000);
+        int[] payloadSizes = parse(System.getProperty("payloadSizes", "1024,65536,204800"));
+        int[] parallelisms = parse(System.getProperty("parallelism", "1,4"));
+        long stallTimeoutMs = Long.getLong("stallTimeoutMs", 30000);
+
+        try(EmbeddedBroker broker = new EmbeddedBroker()) {
+            run(broker, "queue:warmup", 1024, 1, Math.min(messages, 10000), stallTimeoutMs);
+
+            System.out.printf("%12s %12s %12s %12s %10s %10s %10s%n",
+                    "payload", "parallelism", "msgs/s", "MB/s", "p50 ms", "p99 ms", "p999 ms");
+            for(int payloadSize : payloadSizes) {
+                for(int parallelism : parallelisms) {
+                    String queue = "queue:load-" + payloadSize + "-" + parallelism;
+                    Result result = run(broker, queue, payloadSize, parallelism, messages, stallTimeoutMs);
+                    System.out.printf("%12d %12d %12.0f %12.2f %10.2f %10.2f %10.2f%n",
+                            payloadSize, parallelism, result.messagesPerSecond(),
+                            result.bytesPerSecond() / (1024 * 1024),
+                            result.percentile(0.5), result.percentile(0.99), result.percentile(0.999));
+                }
+            }
+        }
+    }
+
+    static Result run(EmbeddedBroker broker, String queue, int payloadSize, int parallelism, int messages,
+                      long stallTimeoutMs) throws Exception {
+        Map<String, Object> config = broker.config(queue);
+        config.put("consumerSessions", parallelism);
+        config.put("producerSessions", parallelism);
+
+        SAPEnterpriseMessagingSource source = new SAPEnterpriseMessagingSource();
+        SAPEnterpriseMessagingSink sink = new SAPEnterpriseMessagingSink();
+        source.open(config, new InMemorySourceContext());
+        sink.open(config, new InMemorySinkContext());
+        try {
+            long[] latencies = new long[messages];
+            AtomicInteger received = new AtomicInteger();
+            AtomicReference<Exception> error = new AtomicReference<>();
+            Thread reader = new Thread(() -> {
+                try {
+                    for(int i = 0; i < messages; i++) {
+                        Record<byte[]> record = source.read();
+                        latencies[i] = System.nanoTime() - Long.parseLong(record.getProperties().get(SENT_NANOS));
+                        record.ack();
+                        received.incrementAndGet();
+                    }
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch(Exception e) {
+                    error.set(e);
+                }
+            }, "load-generator-reader");
+            reader.start();
+
+            byte[] payload = Benchmarks.payload(payloadSize);
+            AtomicLong failures = new AtomicLong();
+            long start = System.nanoTime();
+            for(int i = 0; i < messages; i++) {
+                String key = "key-" + (i % 64);
+                Map<String, String> properties = Collections.singletonMap(SENT_NANOS, Long.toString(System.nanoTime()));
+                sink.write(record(key, payload, properties, failures));
+            }
+            await(reader, received, failures, messages, stallTimeoutMs);
+            long elapsed = System.nanoTime() - start;
+
+            if(error.get() != null) {
+                throw new IllegalStateException("source failed", error.get());
+            }
+            if(failures.get() > 0) {
+                throw new IllegalStateException(failures.get() + " records failed by the sink");
+            }
+            return new Result(messages, payloadSize, elapsed, latencies);
+        } finally {
+            source.close();
+            sink.close();
+        }
+    }
+
+    /**
+     * Waits until the reader has received all the records not failed by the sink, or has stopped.
+     *
+     * @throws IllegalStateException if the reader receives no record for the stall timeout
+     */
+    private static void await(Thread reader, AtomicInteger received, AtomicLong failures, int messages,
+                              long stallTimeoutMs) throws InterruptedException {
+        int last = -1;
+        long progress = System.nanoTime();
+        while(reader.isAlive() && received.get() + failures.get() < messages) {
+            reader.join(100);
+            int count = received.get();
+            if(count != last) {
+                last = count;
+                progress = System.nanoTime();
+            } else if(System.nanoTime() - progress > TimeUnit.MILLISECONDS.toNanos(stallTimeoutMs)) {
+                reader.interrupt();
+                throw new IllegalStateException("source stalled after " + count + " of " + messages + " records");
+            }
+        }
+        reader.interrupt();
+        reader.join();
+    }
+
+    private static Record<byte[]> record(String key, byte[] value, Map<String, String> properties, AtomicLong failures) {
+        return new Record<byte[]>() {
+            @Override
+            public Optional<String> getKey() {
+                return Optional.of(key);
+            }
+
+            @Override
+            public byte[] getValue() {
+                return value;
+            }
+
+            @Override
+            public Map<String, String> getProperties() {
+                return properties;
+            }
+
+            @Override
+            public void fail() {
+                failures.incrementAndGet();
+            }
+        };
+    }
+
+    private static int[] parse(String values) {
+        return Arrays.stream(values.split(",")).map(String::trim).mapToInt(Integer::parseInt).toArray();
+    }
+
+    static class Result {
+
+        private final int messages;
+        private final int payloadSize;
+        private final long elapsedNanos;
+        private final long[] latencies;
+
+        Result(int messages, int payloadSize, long elapsedNanos, long[] latencies) {
+            this.messages = messages;
+            this.payloadSize = payloadSize;
+            this.elapsedNanos = elapsedNanos;
+            this.latencies = latencies.clone();
+            Arrays.sort(this.latencies);
+        }
+
+        double messagesPerSecond() {
+            return messages * 1e9 / elapsedNanos;
+        }
+
+        double bytesPerSecond() {
+            return messagesPerSecond() * payloadSize;
+        }
+
+        /**
+         * @return the latency in millis below which the given fraction of the messages was delivered
+         */
+        double percentile(double fraction) {
+            int index = Math.max(0, (int) Math.ceil(fraction * latencies.length) - 1);
+            return latencies[index] / 1e6;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.richemont.digital.pulsar;
+
+/*-
+ * #%L
+ * pulsar-sap-em-connector
+ * %%
+ * Copyright (C) 2020 Richemont SA
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import org.apache.pulsar.functions.api.Record;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.slf4j.helpers.NOPLogger;
+
+import javax.jms.Message;
+import javax.jms.JMSException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Construction of the JMS message sent for a Pulsar record by {@link SAPEnterpriseMessagingSender#createMessage}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SinkBenchmark {
+
+    @Param({"1024", "262144"})
+    int payloadSize;
+
+    @Param({"0", "8"})
+    int propertyCount;
+
+    private SAPEnterpriseMessagingSender sender;
+    private Record<byte[]> record;
+
+    @Setup
+    public void setup() throws Exception {
+        SAPEnterpriseMessagingConfig config = SAPEnterpriseMessagingConfig.load(Benchmarks.config());
+        SAPEnterpriseMessagingWindow window = new SAPEnterpriseMessagingWindow(
+                config.getMaxInflightMessages(), config.getMaxInflightBytes());
+        sender = new SAPEnterpriseMessagingSender(new InMemorySession(), null, window, config,
+                new SAPEnterpriseMessagingMetrics(SAPEnterpriseMessagingMetrics.SINK, config.getConnectionName(),
+                        "sap-em-benchmark", 0), null,
+                "sap-em-benchmark", e -> { }, NOPLogger.NOP_LOGGER);
+        record = Benchmarks.record("key", Benchmarks.payload(payloadSize), Benchmarks.properties(propertyCount));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        sender.close();
+    }
+
+    @Benchmark
+    public Message createMessage() throws JMSException {
+        return sender.createMessages(record).get(0);
+    }
+}
@@ -0,0 +1,102 @@
+package com.richemont.digital.pulsar;
+
+/*-
+ * #%L
+ * pulsar-sap-em-connector
+ * %%
+ * Copyright (C) 2020 Richemont SA
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import org.apache.pulsar.functions.api.Record;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding of received JMS messages into Pulsar records by {@link SAPEnterpriseMessagingSource#createRecord}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SourceBenchmark {
+
+    @Param({"1024", "262144"})
+    int payloadSize;
+
+    @Param({"0", "8"})
+    int propertyCount;
+
+    private SAPEnterpriseMessagingSource source;
+    private SAPEnterpriseMessagingAcknowledger acknowledger;
+    private InMemoryBytesMessage bytesMessage;
+    private InMemoryTextMessage textMessage;
+
+    @Setup
+    public void setup() throws Exception {
+        source = new SAPEnterpriseMessagingSource();
+        source.configure(Benchmarks.config(), new InMemorySourceContext());
+        acknowledger = new SAPEnterpriseMessagingAcknowledger(new InMemorySession(), source.getConfig(),
+                source.getMetrics());
+
+        byte[] payload = Benchmarks.payload(payloadSize);
+        Map<String, String> properties = Benchmarks.properties(propertyCount);
+        bytesMessage = new InMemoryBytesMessage(payload);
+        textMessage = new InMemoryTextMessage(new String(payload, StandardCharsets.UTF_8));
+        for(Map.Entry<String, String> property : properties.entrySet()) {
+            bytesMessage.setStringProperty(property.getKey(), property.getValue());
+            textMessage.setStringProperty(property.getKey(), property.getValue());
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        source.close();
+    }
+
+    @Benchmark
+    public Record<byte[]> bytesMessage() throws Exception {
+        bytesMessage.reset();
+        return source.createRecord(acknowledger, bytesMessage);
+    }
+
+    @Benchmark
+    public Record<byte[]> textMessage() throws Exception {
+        return source.createRecord(acknowledger, textMessage);
+    }
+
+    @Benchmark
+    public Map<String, String> bytesMessageWithProperties() throws Exception {
+        bytesMessage.reset();
+        return source.createRecord(acknowledger, bytesMessage).getProperties();
+    }
+}
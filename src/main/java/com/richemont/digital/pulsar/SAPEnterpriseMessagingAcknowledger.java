@@ -0,0 +1,267 @@
+package com.richemont.digital.pulsar;
+
+/*-
+ * #%L
+ * pulsar-sap-em-connector
+ * %%
+ * Copyright (C) 2020 Richemont SA
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.Session;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tracks the completion of the records received on a session and settles them with the broker in batches.
+ * <p>
+ * In {@code client} mode acknowledging a message acknowledges every message delivered by the session, so a batch is
+ * only acknowledged once Pulsar has completed all of its records; the session stops receiving while a full or
+ * lingering batch is outstanding. If any record of the batch failed the session is recovered instead, redelivering
+ * the batch. A batch holding chunks of a record that is still being reassembled stays open so that the remaining
+ * chunks can be received, but stops receiving once it has been open for longer than the linger and the reassembly
+ * timeout together, until the chunks it holds are complete or expired.
+ * <p>
+ * In {@code transacted} mode batches are delimited the same way but each batch is a transaction that is committed
+ * once Pulsar has completed all of its records, or rolled back if any of them failed.
+ * <p>
+ * In {@code individual} mode each message is settled on its own, accepted when acked, released for redelivery
+ * when failed and rejected, so that the broker dead-letters it, when it can never be turned into a record; settlements
+ * are queued and flushed by the receiving thread. In the batch modes a rejected message fails its batch, until the
+ * redelivery limit of the broker dead-letters it. A dropped message, such as a chunk of an expired record, is
+ * rejected in {@code individual} mode and acknowledged with its batch otherwise.
+ * <p>
+ * {@link #delivered(Message)} and {@link #settle(long)} must only be called by the thread receiving from the session,
+ * {@link #ack(Message)}, {@link #fail(Message)}, {@link #reject(Message)} and {@link #drop(Message)} may be called by
+ * any thread.
+ */
+class SAPEnterpriseMessagingAcknowledger {
+
+    static final String CLIENT = "client";
+    static final String INDIVIDUAL = "individual";
+    static final String TRANSACTED = "transacted";
+
+    /** Qpid JMS session mode acknowledging messages individually. */
+    static final int INDIVIDUAL_ACKNOWLEDGE = 101;
+
+    private static final String JMS_AMQP_ACK_TYPE = "JMS_AMQP_ACK_TYPE";
+    private static final int ACCEPTED = 1;
+    private static final int REJECTED = 2;
+    private static final int RELEASED = 3;
+
+    private final Session session;
+    private final SAPEnterpriseMessagingMetrics metrics;
+    private final boolean individual;
+    private final boolean transacted;
+    private final int batchSize;
+    private final long batchLinger;
+    private final long reassemblyTimeout;
+
+    // -- client mode
+    private final Object lock = new Object();
+    private int delivered;
+    private int completed;
+    private boolean failed;
+    private Message last;
+    private long batchStart;
+    private int assembling;
+
+    // -- individual mode
+    private final Queue<Message> settlements = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private long lastSettled = System.currentTimeMillis();
+
+    SAPEnterpriseMessagingAcknowledger(Session session, SAPEnterpriseMessagingConfig config,
+                                       SAPEnterpriseMessagingMetrics metrics) {
+        this.session = session;
+        this.metrics = metrics;
+        this.individual = INDIVIDUAL.equals(config.getAckMode());
+        this.transacted = TRANSACTED.equals(config.getAckMode());
+        this.batchSize = config.getAckBatchSize();
+        this.batchLinger = config.getAckBatchLingerMs();
+        this.reassemblyTimeout = config.getReassemblyTimeoutMs();
+    }
+
+    /**
+     * Registers a message received on the session.
+     */
+    void delivered(Message message) {
+        if(individual) {
+            return;
+        }
+        synchronized(lock) {
+            if(delivered == 0) {
+                batchStart = System.currentTimeMillis();
+            }
+            delivered++;
+            last = message;
+        }
+    }
+
+    /**
+     * Settles the current batch with the broker if it is full or has lingered long enough.
+     *
+     * @param timeout millis to wait for the batch to be completed by Pulsar
+     * @return {@code false} if the batch is still outstanding and no more messages should be received
+     */
+    boolean settle(long timeout) throws JMSException, InterruptedException {
+        return individual ? settleIndividual() : settleBatch(timeout);
+    }
+
+    /**
+     * Registers a chunk delivered by the session and held by the reassembler until its record is complete.
+     */
+    void assembling() {
+        if(individual) {
+            return;
+        }
+        synchronized(lock) {
+            assembling++;
+        }
+    }
+
+    /**
+     * Registers a chunk released by the reassembler, either as part of a complete record or because it expired.
+     */
+    void assembled() {
+        if(individual) {
+            return;
+        }
+        synchronized(lock) {
+            assembling--;
+            if(assembling == 0) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    void ack(Message message) {
+        complete(message, ACCEPTED);
+    }
+
+    void fail(Message message) {
+        complete(message, RELEASED);
+    }
+
+    /**
+     * Fails a message that can never be turned into a record, such as a corrupted one.
+     */
+    void reject(Message message) {
+        complete(message, REJECTED);
+    }
+
+    /**
+     * Settles a message for good without turning it into a record, such as a chunk of a record that expired before
+     * it was complete: failing its batch would only redeliver the same incomplete record.
+     */
+    void drop(Message message) {
+        complete(message, individual ? REJECTED : ACCEPTED);
+    }
+
+    /**
+     * @param outcome the AMQP outcome the message is settled with in {@code individual} mode
+     */
+    private void complete(Message message, int outcome) {
+        if(individual) {
+            if(outcome != ACCEPTED) {
+                try {
+                    message.setIntProperty(JMS_AMQP_ACK_TYPE, outcome);
+                } catch(JMSException e) {
+                    throw new IllegalStateException("message settlement failed", e);
+                }
+            }
+            settlements.add(message);
+            pending.incrementAndGet();
+            return;
+        }
+        synchronized(lock) {
+            failed |= outcome != ACCEPTED;
+            completed++;
+            if(completed == delivered) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private boolean settleBatch(long timeout) throws JMSException, InterruptedException {
+        Message message;
+        boolean failure;
+        synchronized(lock) {
+            if(delivered == 0) {
+                return true;
+            }
+            if(delivered < batchSize && System.currentTimeMillis() - batchStart < batchLinger) {
+                return true;
+            }
+            if(assembling > 0) {
+                if(System.currentTimeMillis() - batchStart < batchLinger + reassemblyTimeout) {
+                    return true;
+                }
+                lock.wait(timeout);
+                return false;
+            }
+            if(completed < delivered) {
+                lock.wait(timeout);
+                if(completed < delivered) {
+                    return false;
+                }
+            }
+            message = last;
+            failure = failed;
+            delivered = 0;
+            completed = 0;
+            failed = false;
+            last = null;
+        }
+        if(failure) {
+            metrics.rollbacks.increment();
+        }
+        if(transacted) {
+            if(failure) {
+                session.rollback();
+            } else {
+                session.commit();
+            }
+        } else if(failure) {
+            session.recover();
+        } else {
+            message.acknowledge();
+        }
+        return true;
+    }
+
+    private boolean settleIndividual() throws JMSException {
+        int count = pending.get();
+        if(count == 0 || count < batchSize && System.currentTimeMillis() - lastSettled < batchLinger) {
+            return true;
+        }
+        Message message;
+        while((message = settlements.poll()) != null) {
+            pending.decrementAndGet();
+            message.acknowledge();
+        }
+        lastSettled = System.currentTimeMillis();
+        return true;
+    }
+}
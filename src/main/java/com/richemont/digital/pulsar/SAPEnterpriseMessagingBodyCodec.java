@@ -0,0 +1,209 @@
+package com.richemont.digital.pulsar;
+
+/*-
+ * #%L
+ * pulsar-sap-em-connector
+ * %%
+ * Copyright (C) 2020 Richemont SA
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.MapMessage;
+import javax.jms.MessageFormatException;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Enumeration;
+
+/**
+ * Copies JMS message bodies into byte arrays with a single allocation per message. Text is copied into a reused char
+ * array and encoded as UTF-8 through a reused encoder into a reused scratch buffer, avoiding the intermediate arrays
+ * of {@link String#getBytes()}.
+ * <p>
+ * Map messages are converted to and from flat JSON objects with Jackson's streaming generator and parser, without
+ * building an intermediate tree; nested JSON objects and arrays are kept as their JSON text.
+ * <p>
+ * Instances keep state between calls and must be confined to a single thread.
+ */
+class SAPEnterpriseMessagingBodyCodec {
+
+    /** Scratch buffers larger than this are not kept between messages. */
+    static final int MAX_RETAINED_SCRATCH = 1024 * 1024;
+
+    private static final JsonFactory JSON = new JsonFactory();
+
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private ByteBuffer scratch = ByteBuffer.allocate(8 * 1024);
+    private char[] chars = new char[8 * 1024];
+    private ByteArrayOutputStream json = new ByteArrayOutputStream(8 * 1024);
+
+    private long allocated;
+
+    byte[] read(BytesMessage message) throws JMSException {
+        byte[] body = new byte[(int) message.getBodyLength()];
+        message.readBytes(body);
+        allocated = body.length;
+        return body;
+    }
+
+    byte[] encode(String text) {
+        allocated = 0;
+        int maxLength = (int) Math.ceil(text.length() * (double) encoder.maxBytesPerChar());
+        char[] source = chars;
+        if(source.length < text.length()) {
+            source = new char[text.length()];
+            allocated += 2L * text.length();
+            if(text.length() <= MAX_RETAINED_SCRATCH) {
+                chars = source;
+            }
+        }
+        text.getChars(0, text.length(), source, 0);
+
+        ByteBuffer buffer = scratch;
+        if(buffer.capacity() < maxLength) {
+            buffer = ByteBuffer.allocate(maxLength);
+            allocated += maxLength;
+            if(maxLength <= MAX_RETAINED_SCRATCH) {
+                scratch = buffer;
+            }
+        }
+        // cast for Java 8 where the Buffer methods are not overridden by ByteBuffer
+        ((Buffer) buffer).clear();
+        encoder.reset();
+        encoder.encode(CharBuffer.wrap(source, 0, text.length()), buffer, true);
+        encoder.flush(buffer);
+        ((Buffer) buffer).flip();
+
+        byte[] body = new byte[buffer.remaining()];
+        buffer.get(body);
+        allocated += body.length;
+        return body;
+    }
+
+    /**
+     * Encodes the map entries as the fields of a JSON object; byte arrays are encoded as base64 strings.
+     */
+    byte[] encode(MapMessage message) throws JMSException, IOException {
+        json.reset();
+        try(JsonGenerator generator = JSON.createGenerator(json)) {
+            generator.writeStartObject();
+            Enumeration<?> names = message.getMapNames();
+            while(names.hasMoreElements()) {
+                String name = (String) names.nextElement();
+                generator.writeFieldName(name);
+                writeValue(generator, message.getObject(name));
+            }
+            generator.writeEndObject();
+        }
+        byte[] body = json.toByteArray();
+        if(body.length > MAX_RETAINED_SCRATCH) {
+            json = new ByteArrayOutputStream(8 * 1024);
+        }
+        allocated = body.length;
+        return body;
+    }
+
+    /**
+     * Sets the fields of a JSON object as the entries of the map message; integers are set as {@code int} or
+     * {@code long}, decimals as {@code double} and nested objects and arrays as their JSON text.
+     */
+    void decode(byte[] body, MapMessage message) throws JMSException, IOException {
+        try(JsonParser parser = JSON.createParser(body)) {
+            if(parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new MessageFormatException("record value is not a JSON object");
+            }
+            while(parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                switch(token) {
+                    case VALUE_STRING:
+                        message.setString(name, parser.getText());
+                        break;
+                    case VALUE_NUMBER_INT:
+                        if(parser.getNumberType() == JsonParser.NumberType.INT) {
+                            message.setInt(name, parser.getIntValue());
+                        } else if(parser.getNumberType() == JsonParser.NumberType.LONG) {
+                            message.setLong(name, parser.getLongValue());
+                        } else {
+                            message.setString(name, parser.getText());
+                        }
+                        break;
+                    case VALUE_NUMBER_FLOAT:
+                        message.setDouble(name, parser.getDoubleValue());
+                        break;
+                    case VALUE_TRUE:
+                    case VALUE_FALSE:
+                        message.setBoolean(name, parser.getBooleanValue());
+                        break;
+                    case VALUE_NULL:
+                        message.setString(name, null);
+                        break;
+                    default:
+                        int start = (int) parser.getTokenLocation().getByteOffset();
+                        parser.skipChildren();
+                        int end = (int) parser.getCurrentLocation().getByteOffset();
+                        message.setString(name, new String(body, start, end - start, StandardCharsets.UTF_8));
+                }
+            }
+        }
+    }
+
+    private static void writeValue(JsonGenerator generator, Object value) throws IOException {
+        if(value == null) {
+            generator.writeNull();
+        } else if(value instanceof Boolean) {
+            generator.writeBoolean((Boolean) value);
+        } else if(value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            generator.writeNumber(((Number) value).intValue());
+        } else if(value instanceof Long) {
+            generator.writeNumber((Long) value);
+        } else if(value instanceof Float) {
+            generator.writeNumber((Float) value);
+        } else if(value instanceof Double) {
+            generator.writeNumber((Double) value);
+        } else if(value instanceof byte[]) {
+            generator.writeBinary((byte[]) value);
+        } else {
+            generator.writeString(value.toString());
+        }
+    }
+
+    /**
+     * @return the number of bytes allocated for the last message body read or encoded
+     */
+    long allocated() {
+        return allocated;
+    }
+}
@@ -0,0 +1,216 @@
+package com.richemont.digital.pulsar;
+
+/*-
+ * #%L
+ * pulsar-sap-em-connector
+ * %%
+ * Copyright (C) 2020 Richemont SA
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToLongFunction;
+
+/**
+ * Bounded hand-off buffer capped by both the number of elements and their total size in bytes. Producers block while
+ * the buffer is full; a single element larger than the byte limit is admitted when the buffer is empty so that it can
+ * never stall the pipeline.
+ * <p>
+ * Room can be reserved for an element before it is produced, e.g. while a message waits to be decoded; reservations
+ * count against both limits until they are turned into elements or released. The element produced for a reservation
+ * may be larger than reserved, and is still admitted when the buffer holds no elements.
+ *
+ * @param <T> the buffered element type
+ */
+class SAPEnterpriseMessagingBuffer<T> {
+
+    private final int maxElements;
+    private final long maxBytes;
+    private final ToLongFunction<T> sizeOf;
+
+    private final Queue<T> elements = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    private long bytes;
+    private int reserved;
+    private Exception failure;
+
+    SAPEnterpriseMessagingBuffer(int maxElements, long maxBytes, ToLongFunction<T> sizeOf) {
+        this.maxElements = maxElements;
+        this.maxBytes = maxBytes;
+        this.sizeOf = sizeOf;
+    }
+
+    /**
+     * Adds the element, waiting for space to become available.
+     */
+    void put(T element) throws InterruptedException {
+        long size = sizeOf.applyAsLong(element);
+        lock.lockInterruptibly();
+        try {
+            while(isFull(size, false)) {
+                notFull.await();
+            }
+            elements.add(element);
+            bytes += size;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds the element produced for a reservation, waiting for more space if it is larger than reserved.
+     *
+     * @param reservation the size reserved by {@link #reserve(long)}
+     */
+    void put(T element, long reservation) throws InterruptedException {
+        long size = sizeOf.applyAsLong(element);
+        lock.lockInterruptibly();
+        try {
+            reserved--;
+            bytes -= reservation;
+            while(isFull(size, false)) {
+                notFull.await();
+            }
+            elements.add(element);
+            bytes += size;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reserves room for an element of the given size, waiting for space to become available.
+     */
+    void reserve(long size) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while(isFull(size, true)) {
+                notFull.await();
+            }
+            reserved++;
+            bytes += size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gives back a reservation that did not produce an element.
+     *
+     * @param reservation the size reserved by {@link #reserve(long)}
+     */
+    void release(long reservation) {
+        lock.lock();
+        try {
+            reserved--;
+            bytes -= reservation;
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the next element, waiting for one to become available.
+     *
+     * @throws Exception the failure reported by {@link #fail(Exception)}, once all elements before it are taken
+     */
+    T take() throws Exception {
+        lock.lockInterruptibly();
+        try {
+            while(elements.isEmpty()) {
+                if(failure != null) {
+                    throw failure;
+                }
+                notEmpty.await();
+            }
+            T element = elements.remove();
+            bytes -= sizeOf.applyAsLong(element);
+            notFull.signalAll();
+            return element;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reports a failure to the reader; the failure is thrown by {@link #take()} once the buffer is drained.
+     */
+    void fail(Exception exception) {
+        lock.lock();
+        try {
+            failure = exception;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes all elements and reservations.
+     */
+    void clear() {
+        lock.lock();
+        try {
+            elements.clear();
+            reserved = 0;
+            bytes = 0;
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return elements.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long bytes() {
+        lock.lock();
+        try {
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param reserving whether room is reserved, which waits for the outstanding reservations as well; an element is
+     *                  admitted whenever the buffer holds none, as the reservations may be waiting behind it
+     */
+    private boolean isFull(long size, boolean reserving) {
+        boolean empty = elements.isEmpty() && (!reserving || reserved == 0);
+        return elements.size() + reserved >= maxElements || (!empty && bytes + size > maxBytes);
+    }
+}
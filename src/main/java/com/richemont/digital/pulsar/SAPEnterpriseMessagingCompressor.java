@@ -0,0 +1,312 @@
+package com.richemont.digital.pulsar;
+
+/*-
+ * #%L
+ * pulsar-sap-em-connector
+ * %%
+ * Copyright (C) 2020 Richemont SA
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses and decompresses message bodies in the {@code deflate} (zlib) or {@code gzip} format, reusing the
+ * deflater, inflater and a scratch buffer between messages. Compressed bodies are written from the scratch buffer and
+ * decompressed straight into an array of the uncompressed size, so that each message allocates a single array.
+ * Bodies that would decompress to more than the maximum size are rejected before the array is allocated, and gzip
+ * bodies are checked against the CRC32 and size of their trailer.
+ * <p>
+ * Instances keep state between calls and must be confined to a single thread. The deflater and inflaters hold native
+ * memory, created on first use and released by {@link #close()}.
+ */
+class SAPEnterpriseMessagingCompressor implements AutoCloseable {
+
+    static final String NONE = "none";
+    static final String DEFLATE = "deflate";
+    static final String GZIP = "gzip";
+
+    /** JMS property holding the compression of a message body. */
+    static final String COMPRESSION_PROPERTY = "PulsarCompression";
+    /** JMS property holding the size of a compressed message body once decompressed. */
+    static final String UNCOMPRESSED_SIZE_PROPERTY = "PulsarUncompressedSize";
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    private final String compression;
+    private final int maxSize;
+    private final Deflater deflater;
+    private Inflater inflater;
+    private Inflater gzipInflater;
+    private final CRC32 crc = new CRC32();
+    private byte[] scratch = new byte[8 * 1024];
+
+    /**
+     * @param compression the compression applied by {@link #compress(byte[])}
+     * @param level the deflater compression level
+     */
+    SAPEnterpriseMessagingCompressor(String compression, int level) {
+        this(compression, level, MAX_ARRAY_SIZE);
+    }
+
+    /**
+     * @param maxSize the maximum size of the bodies returned by {@link #decompress(byte[], int, String, int)}
+     */
+    SAPEnterpriseMessagingCompressor(int maxSize) {
+        this(NONE, Deflater.DEFAULT_COMPRESSION, maxSize);
+    }
+
+    private SAPEnterpriseMessagingCompressor(String compression, int level, int maxSize) {
+        this.compression = compression;
+        this.maxSize = maxSize;
+        this.deflater = NONE.equals(compression) ? null : new Deflater(level, GZIP.equals(compression));
+    }
+
+    // -- AutoCloseable
+
+    /**
+     * Releases the native memory of the deflater and inflaters; the compressor must not be used afterwards.
+     */
+    @Override
+    public void close() {
+        if(deflater != null) {
+            deflater.end();
+        }
+        if(inflater != null) {
+            inflater.end();
+        }
+        if(gzipInflater != null) {
+            gzipInflater.end();
+        }
+    }
+
+    // -- SAPEnterpriseMessagingCompressor
+
+    /**
+     * Compresses the value into the scratch buffer returned by {@link #compressed()}.
+     *
+     * @return the compressed length
+     */
+    int compress(byte[] value) {
+        boolean gzip = GZIP.equals(compression);
+        int length = 0;
+        if(gzip) {
+            ensureScratch(GZIP_HEADER.length, 0);
+            System.arraycopy(GZIP_HEADER, 0, scratch, 0, GZIP_HEADER.length);
+            length = GZIP_HEADER.length;
+        }
+        deflater.reset();
+        deflater.setInput(value);
+        deflater.finish();
+        while(!deflater.finished()) {
+            ensureScratch(length + 1, length);
+            length += deflater.deflate(scratch, length, scratch.length - length);
+        }
+        if(gzip) {
+            crc.reset();
+            crc.update(value, 0, value.length);
+            ensureScratch(length + 8, length);
+            writeInt(scratch, length, (int) crc.getValue());
+            writeInt(scratch, length + 4, value.length);
+            length += 8;
+        }
+        return length;
+    }
+
+    /**
+     * @return the scratch buffer holding the last compressed value; only valid until the next call
+     */
+    byte[] compressed() {
+        return scratch;
+    }
+
+    /**
+     * Reads and decompresses the body of a message.
+     *
+     * @param compression the compression of the body
+     * @param size the uncompressed size of the body, or a negative value if not known
+     */
+    byte[] decompress(BytesMessage message, String compression, int size) throws JMSException, DataFormatException {
+        int length = (int) message.getBodyLength();
+        ensureScratch(length, 0);
+        message.readBytes(scratch, length);
+        return decompress(scratch, length, compression, size);
+    }
+
+    /**
+     * Decompresses the first {@code length} bytes of a body.
+     *
+     * @param compression the compression of the body
+     * @param size the uncompressed size of the body, or a negative value if not known
+     * @throws DataFormatException if the body is corrupted or larger than the maximum size once decompressed
+     */
+    byte[] decompress(byte[] body, int length, String compression, int size) throws DataFormatException {
+        Inflater inflater;
+        int offset = 0;
+        boolean gzip = GZIP.equals(compression);
+        int checksum = 0;
+        if(gzip) {
+            offset = gzipHeaderLength(body, length);
+            checksum = readInt(body, length - 8);
+            int trailerSize = readInt(body, length - 4);
+            if(trailerSize < 0) {
+                throw new DataFormatException("uncompressed size " + (trailerSize & 0xffffffffL)
+                        + " exceeds " + maxSize);
+            }
+            if(size >= 0 && size != trailerSize) {
+                throw new DataFormatException("uncompressed size " + size + " does not match gzip size " + trailerSize);
+            }
+            size = trailerSize;
+            length -= 8;
+            if(gzipInflater == null) {
+                gzipInflater = new Inflater(true);
+            }
+            inflater = gzipInflater;
+        } else if(DEFLATE.equals(compression)) {
+            if(this.inflater == null) {
+                this.inflater = new Inflater();
+            }
+            inflater = this.inflater;
+        } else {
+            throw new DataFormatException("unsupported compression " + compression);
+        }
+        if(size > maxSize) {
+            throw new DataFormatException("uncompressed size " + size + " exceeds " + maxSize);
+        }
+        inflater.reset();
+        inflater.setInput(body, offset, length - offset);
+        byte[] inflated = size < 0 ? inflateUnknown(inflater, maxSize) : inflateExact(inflater, size);
+        if(gzip) {
+            crc.reset();
+            crc.update(inflated, 0, inflated.length);
+            if((int) crc.getValue() != checksum) {
+                throw new DataFormatException("gzip CRC32 does not match");
+            }
+        }
+        return inflated;
+    }
+
+    private static byte[] inflateExact(Inflater inflater, int size) throws DataFormatException {
+        byte[] body = new byte[size];
+        int length = 0;
+        while(length < size && !inflater.finished()) {
+            int inflated = inflater.inflate(body, length, size - length);
+            if(inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                break;
+            }
+            length += inflated;
+        }
+        if(length != size || !inflater.finished()) {
+            throw new DataFormatException("decompressed size does not match " + size);
+        }
+        return body;
+    }
+
+    private static byte[] inflateUnknown(Inflater inflater, int maxSize) throws DataFormatException {
+        byte[] body = new byte[Math.min(8 * 1024, maxSize + 1)];
+        int length = 0;
+        while(!inflater.finished()) {
+            if(length == body.length) {
+                if(length > maxSize) {
+                    throw new DataFormatException("uncompressed size exceeds " + maxSize);
+                }
+                body = Arrays.copyOf(body, (int) Math.min(body.length * 2L, maxSize + 1L));
+            }
+            int inflated = inflater.inflate(body, length, body.length - length);
+            if(inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                throw new DataFormatException("truncated compressed body");
+            }
+            length += inflated;
+        }
+        if(length > maxSize) {
+            throw new DataFormatException("uncompressed size exceeds " + maxSize);
+        }
+        return length == body.length ? body : Arrays.copyOf(body, length);
+    }
+
+    private static int gzipHeaderLength(byte[] body, int length) throws DataFormatException {
+        if(length < 18 || (body[0] & 0xff | (body[1] & 0xff) << 8) != GZIP_MAGIC || body[2] != Deflater.DEFLATED) {
+            throw new DataFormatException("not in gzip format");
+        }
+        int flags = body[3];
+        int end = length - 8;
+        int offset = 10;
+        if((flags & FEXTRA) != 0) {
+            offset += 2 + (body[offset] & 0xff | (body[offset + 1] & 0xff) << 8);
+        }
+        if((flags & FNAME) != 0) {
+            offset = skipString(body, offset, end);
+        }
+        if((flags & FCOMMENT) != 0) {
+            offset = skipString(body, offset, end);
+        }
+        if((flags & FHCRC) != 0) {
+            offset += 2;
+        }
+        if(offset > end) {
+            throw new DataFormatException("truncated gzip header");
+        }
+        return offset;
+    }
+
+    private static int skipString(byte[] body, int offset, int end) throws DataFormatException {
+        while(offset < end) {
+            if(body[offset++] == 0) {
+                return offset;
+            }
+        }
+        throw new DataFormatException("truncated gzip header");
+    }
+
+    private void ensureScratch(int capacity, int retained) {
+        if(scratch.length < capacity) {
+            int grown = Math.max(capacity, scratch.length * 2);
+            scratch = retained == 0 ? new byte[grown] : Arrays.copyOf(scratch, grown);
+        } else if(retained == 0 && scratch.length > SAPEnterpriseMessagingBodyCodec.MAX_RETAINED_SCRATCH
+                && capacity <= SAPEnterpriseMessagingBodyCodec.MAX_RETAINED_SCRATCH) {
+            scratch = new byte[Math.max(capacity, 8 * 1024)];
+        }
+    }
+
+    private static void writeInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) value;
+        buffer[offset + 1] = (byte) (value >> 8);
+        buffer[offset + 2] = (byte) (value >> 16);
+        buffer[offset + 3] = (byte) (value >> 24);
+    }
+
+    private static int readInt(byte[] buffer, int offset) {
+        return buffer[offset] & 0xff | (buffer[offset + 1] & 0xff) << 8
+                | (buffer[offset + 2] & 0xff) << 16 | (buffer[offset + 3] & 0xff) << 24;
+    }
+}
@@ -0,0 +1,291 @@
+package com.richemont.digital.pulsar;
+
+/*-
+ * #%L
+ * pulsar-sap-em-connector
+ * %%
+ * Copyright (C) 2020 Richemont SA
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import org.apache.qpid.jms.JmsConnection;
+import org.apache.qpid.jms.JmsDestination;
+import org.apache.qpid.jms.JmsSession;
+import org.apache.qpid.jms.policy.JmsPrefetchPolicy;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+import javax.jms.Session;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Process wide registry of the connections to SAP Enterprise Messaging. Connectors configured with the same service
+ * and credentials share a single connection, each opening its own sessions on it, so that the connection and its
+ * OAuth2 token are only established once per worker; the connection is closed when the last connector releases it.
+ * <p>
+ * Connections are created outside of the registry lock: connectors of other services do not wait for a slow broker,
+ * and connectors of the same service wait for the connection being created by the first one.
+ * <p>
+ * The connection factories are cached as long as a connection created by them is open, so that the connections
+ * created meanwhile reuse the messaging service set up for the first one.
+ * <p>
+ * A JMS connection only takes a single exception listener, so the registry listens to each connection and notifies
+ * every connector using it of its failure; a failed connection is no longer handed out to new connectors.
+ * <p>
+ * The prefetch of a Qpid JMS connection applies to all of its sessions, so the registry replaces it with a policy
+ * looking up the prefetch set by the connector owning each session. Consumers then only wait for the messages they
+ * have been sent already instead of asking the broker to drain their credit each time a receive times out.
+ */
+final class SAPEnterpriseMessagingConnections {
+
+    private static final Map<List<Object>, Factory> FACTORIES = new HashMap<>();
+    private static final Map<List<Object>, Shared> CONNECTIONS = new HashMap<>();
+    private static final Map<Connection, Shared> ACQUIRED = new IdentityHashMap<>();
+    private static final Map<JmsSession, Integer> PREFETCH = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private SAPEnterpriseMessagingConnections() {
+    }
+
+    /**
+     * Returns the connection shared by the connectors with the same service and credentials, creating it if needed.
+     *
+     * @param shared {@code false} to always create a new connection
+     * @param listener notified when the connection fails; also identifies the connector releasing the connection
+     */
+    static Connection acquire(SAPEnterpriseMessagingConfig config, boolean shared, FailureListener listener)
+            throws JMSException {
+        List<Object> key = key(config);
+        Shared connection;
+        ConnectionFactory factory = null;
+        synchronized(SAPEnterpriseMessagingConnections.class) {
+            connection = shared ? CONNECTIONS.get(key) : null;
+            if(connection == null) {
+                factory = reference(key, config);
+                connection = new Shared(key, shared);
+                if(shared) {
+                    CONNECTIONS.put(key, connection);
+                }
+            }
+            connection.listeners.add(listener);
+        }
+        if(factory != null) {
+            connection.create(factory);
+        }
+        try {
+            return connection.get();
+        } catch(JMSException | RuntimeException e) {
+            connection.listeners.remove(listener);
+            throw e;
+        }
+    }
+
+    /**
+     * Releases a connection returned by {@link #acquire(SAPEnterpriseMessagingConfig, boolean, FailureListener)},
+     * closing it unless other connectors still use it.
+     *
+     * @return {@code true} if the connection was closed
+     */
+    static boolean release(Connection connection, FailureListener listener) throws JMSException {
+        if(!detach(connection, listener)) {
+            return false;
+        }
+        connection.close();
+        return true;
+    }
+
+    /**
+     * Releases a connection like {@link #release(Connection, FailureListener)} but leaves closing it to the caller;
+     * the connection is no longer handed out once this returns.
+     *
+     * @return {@code true} if no other connector uses the connection, which must then be closed by the caller
+     */
+    static synchronized boolean detach(Connection connection, FailureListener listener) {
+        Shared shared = ACQUIRED.get(connection);
+        if(shared != null) {
+            shared.listeners.remove(listener);
+            if(!shared.listeners.isEmpty()) {
+                return false;
+            }
+            ACQUIRED.remove(connection);
+            removed(shared);
+        }
+        return true;
+    }
+
+    /**
+     * Sets the number of messages prefetched by each consumer created on the session afterwards, in place of the
+     * prefetch policy of its connection.
+     */
+    static void prefetch(Session session, int prefetch) {
+        if(session instanceof JmsSession) {
+            PREFETCH.put((JmsSession) session, prefetch);
+        }
+    }
+
+    private static synchronized void failed(Shared shared) {
+        if(shared.shared) {
+            CONNECTIONS.remove(shared.key, shared);
+        }
+    }
+
+    /**
+     * Forgets a connection that is closed or could not be created, and the factory once none of its connections is
+     * left, so that the credentials in the key are not kept.
+     */
+    private static void removed(Shared shared) {
+        if(shared.shared) {
+            CONNECTIONS.remove(shared.key, shared);
+        }
+        Factory factory = FACTORIES.get(shared.key);
+        if(factory != null && --factory.connections == 0) {
+            FACTORIES.remove(shared.key);
+        }
+    }
+
+    private static ConnectionFactory reference(List<Object> key, SAPEnterpriseMessagingConfig config) {
+        Factory factory = FACTORIES.get(key);
+        if(factory == null) {
+            factory = new Factory(config.getConnectionFactory());
+            FACTORIES.put(key, factory);
+        }
+        factory.connections++;
+        return factory.factory;
+    }
+
+    private static List<Object> key(SAPEnterpriseMessagingConfig config) {
+        return Arrays.asList(config.getConnectionFactoryClass(), config.getServiceURL(), config.getClientID(),
+                config.getClientSecret(), config.getTokenEndpoint(), config.getXsappname(), config.getProtocol(),
+                config.getMaxReconnectAttempts(), config.getInitialReconnectDelay(), config.getReconnectDelay());
+    }
+
+    /**
+     * Notified of the failure of an acquired connection.
+     */
+    interface FailureListener {
+        void failed(Connection connection, JMSException exception);
+    }
+
+    private static class Factory {
+
+        private final ConnectionFactory factory;
+        private int connections;
+
+        Factory(ConnectionFactory factory) {
+            this.factory = factory;
+        }
+    }
+
+    private static class SessionPrefetchPolicy implements JmsPrefetchPolicy {
+
+        private final JmsPrefetchPolicy policy;
+
+        SessionPrefetchPolicy(JmsPrefetchPolicy policy) {
+            this.policy = policy;
+        }
+
+        @Override
+        public JmsPrefetchPolicy copy() {
+            return this;
+        }
+
+        @Override
+        public int getConfiguredPrefetch(JmsSession session, JmsDestination destination, boolean durable,
+                                         boolean browser) {
+            Integer prefetch = browser ? null : PREFETCH.get(session);
+            return prefetch != null ? prefetch : policy.getConfiguredPrefetch(session, destination, durable, browser);
+        }
+    }
+
+    /**
+     * A connection and the connectors using it; the connection is completed by the connector that created it.
+     */
+    private static class Shared {
+
+        private final List<Object> key;
+        private final boolean shared;
+        private final CompletableFuture<Connection> connection = new CompletableFuture<>();
+        private final List<FailureListener> listeners = new CopyOnWriteArrayList<>();
+
+        Shared(List<Object> key, boolean shared) {
+            this.key = key;
+            this.shared = shared;
+        }
+
+        void create(ConnectionFactory factory) {
+            Connection created = null;
+            try {
+                created = factory.createConnection();
+                if(created instanceof JmsConnection) {
+                    JmsConnection jms = (JmsConnection) created;
+                    jms.setPrefetchPolicy(new SessionPrefetchPolicy(jms.getPrefetchPolicy()));
+                    jms.setReceiveLocalOnly(true);
+                }
+                Connection failed = created;
+                created.setExceptionListener(exception -> {
+                    failed(this);
+                    for(FailureListener listener : listeners) {
+                        listener.failed(failed, exception);
+                    }
+                });
+                synchronized(SAPEnterpriseMessagingConnections.class) {
+                    ACQUIRED.put(created, this);
+                }
+                connection.complete(created);
+            } catch(JMSException | RuntimeException e) {
+                synchronized(SAPEnterpriseMessagingConnections.class) {
+                    removed(this);
+                }
+                if(created != null) {
+                    try {
+                        created.close();
+                    } catch(JMSException ignored) {
+                        // already failing
+                    }
+                }
+                connection.completeExceptionally(e);
+            }
+        }
+
+        Connection get() throws JMSException {
+            try {
+                return connection.get();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new JMSException("interrupted while waiting for the connection");
+            } catch(ExecutionException e) {
+                if(e.getCause() instanceof JMSException) {
+                    throw (JMSException) e.getCause();
+                }
+                throw (RuntimeException) e.getCause();
+            }
+        }
+    }
+}
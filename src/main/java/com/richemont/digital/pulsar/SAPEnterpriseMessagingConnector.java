@@ -26,77 +26,482 @@ package com.richemont.digital.pulsar;
  * #L%
  */
 
-import com.sap.cloud.servicesdk.xbem.extension.sapcp.jms.MessagingServiceJmsConnectionFactory;
+import org.apache.qpid.jms.JmsConnection;
+import org.apache.qpid.jms.JmsConnectionListener;
+import org.apache.qpid.jms.message.JmsInboundMessageDispatch;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.jms.*;
 import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ObjDoubleConsumer;
 
+/**
+ * Base class of the source and sink managing the connection and its sessions.
+ * <p>
+ * The connection is opened, rebuilt and closed by a dedicated lifecycle thread. When the connection or one of the
+ * sessions fails, the sessions are torn down with {@link #disconnect()} and opened again on a new connection, or on
+ * the warm standby connection if one is kept open; failed attempts are retried with an exponential backoff and
+ * jitter. With {@code asyncConnect} the initial connection is made the same way, so that opening the connector
+ * returns immediately.
+ * <p>
+ * Closing the sessions of a failed connection can block until the client gives up waiting for the broker, so when
+ * reconnecting they are closed on a separate thread while the new sessions are opened.
+ */
 public abstract class SAPEnterpriseMessagingConnector implements AutoCloseable {
 
     static final String JMSX_GROUP_ID = "JMSXGroupID";
     protected Logger log = LoggerFactory.getLogger(SAPEnterpriseMessagingConnector.class);
-    private Connection connection;
     private SAPEnterpriseMessagingConfig config;
+    private SAPEnterpriseMessagingMetrics metrics;
+
+    // -- confined to the lifecycle thread
+    private ScheduledExecutorService lifecycle;
+    private Connection connection;
+    private Connection standby;
+    private ReconnectListener listener;
+    private final List<Session> sessions = new ArrayList<>();
+    private final SAPEnterpriseMessagingConnections.FailureListener failureListener = this::connectionFailed;
+    private boolean established;
+    private int attempts;
+    private int standbyAttempts;
+    private volatile boolean closed;
 
     // -- AutoCloseable
 
     @Override
     final public void close() throws Exception {
-        if(connection == null) {
-            log.debug("connection already closed or was never opened");
-            return;
+        try {
+            if(lifecycle == null) {
+                log.debug("connection already closed or was never opened");
+                return;
+            }
+            closed = true;
+            try {
+                lifecycle.submit(() -> {
+                    teardown(false);
+                    closeStandby();
+                    return null;
+                }).get();
+            } finally {
+                lifecycle.shutdownNow();
+                lifecycle = null;
+                closed();
+            }
+        } finally {
+            closeMetrics();
         }
-        log.debug("closing connection");
-        connection.close();
-        log.info("closed connection");
-        connection = null;
     }
 
     // -- SAPEnterpriseMessagingConnector
 
-    private Connection createConnection(SAPEnterpriseMessagingConfig config) throws JMSException {
-        MessagingServiceJmsConnectionFactory factory = config.getMessagingServiceJmsConnectionFactory();
-        return factory.createConnection();
-//        return config.getUsername() == null
-//                ? factory.createConnection()
-//                : factory.createConnection(config.getUsername(), config.getPassword());
-    }
-
-    final void open(Map<String, Object> configMap, Logger logger) throws JMSException, IOException {
+    /**
+     * Loads the configuration and sets up the metrics of the connector.
+     *
+     * @param role the metrics role, {@link SAPEnterpriseMessagingMetrics#SOURCE} or
+     *             {@link SAPEnterpriseMessagingMetrics#SINK}
+     * @param name the fully qualified name of the Pulsar source or sink labelling the metrics
+     * @param instanceId the id of the Pulsar instance labelling the metrics
+     * @param recorder the Pulsar context recording the published metrics
+     */
+    final void configure(Map<String, Object> configMap, Logger logger, String role, String name, int instanceId,
+                         ObjDoubleConsumer<String> recorder) throws IOException {
         config = SAPEnterpriseMessagingConfig.load(configMap);
         config.validate();
+        if(SAPEnterpriseMessagingMetrics.SOURCE.equals(role)) {
+            config.validateSource();
+        }
         log = logger;
 
-        connection = createConnection(config);
-        log.debug("created connection for {} config", config);
+        metrics = new SAPEnterpriseMessagingMetrics(role, config.getConnectionName(), name, instanceId);
+        if(config.getMetricsIntervalMs() > 0) {
+            metrics.start(recorder, config.getMetricsIntervalMs());
+        }
+        if(config.getMetricsPort() > 0) {
+            SAPEnterpriseMessagingMetricsServer.register(config.getMetricsPort(), metrics);
+        }
+    }
+
+    /**
+     * Opens the connection and its sessions, or only schedules it if the connection is made asynchronously. If the
+     * connection cannot be opened everything set up for it is released before the failure is thrown.
+     */
+    final void open() throws Exception {
+        lifecycle = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "sap-em-connector-" + config.getConnectionName());
+            thread.setDaemon(true);
+            return thread;
+        });
+        if(config.isAsyncConnect()) {
+            lifecycle.execute(this::reconnect);
+            return;
+        }
+        try {
+            lifecycle.submit(() -> {
+                connect();
+                return null;
+            }).get();
+        } catch(ExecutionException e) {
+            // the connection and sessions are already torn down, release the rest as close() will find nothing open
+            lifecycle.shutdownNow();
+            lifecycle = null;
+            try {
+                closed();
+            } catch(Exception suppressed) {
+                e.getCause().addSuppressed(suppressed);
+            }
+            closeMetrics();
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    /**
+     * Reports the failure of a session, rebuilding the connection and all of its sessions.
+     */
+    final void sessionFailed(Session session, Exception exception) {
+        execute(() -> {
+            if(sessions.contains(session)) {
+                log.warn("session of {} failed, reconnecting: {}", config, exception.getMessage());
+                reconnect();
+            }
+        });
+    }
+
+    private void connectionFailed(Connection failed, JMSException exception) {
+        execute(() -> {
+            if(failed == connection) {
+                log.warn("connection of {} failed, reconnecting: {}", config, exception.getMessage());
+                reconnect();
+            } else if(failed == standby) {
+                log.warn("standby connection of {} failed: {}", config, exception.getMessage());
+                closeStandby();
+                openStandby();
+            }
+        });
+    }
 
-        Session session = connection.createSession(false, Session.CLIENT_ACKNOWLEDGE);
-        log.debug("created session for {} connection", config);
+    private void execute(Runnable task) {
+        if(closed) {
+            return;
+        }
+        try {
+            lifecycle.execute(task);
+        } catch(RejectedExecutionException e) {
+            log.debug("connector closed");
+        }
+    }
 
-        Destination destination = createJMSDestination(session);
-        connect(session, destination);
+    private void schedule(Runnable task, long delay) {
+        try {
+            lifecycle.schedule(task, delay, TimeUnit.MILLISECONDS);
+        } catch(RejectedExecutionException e) {
+            log.debug("connector closed");
+        }
+    }
+
+    /**
+     * Opens the connection and its sessions, tearing down whatever was opened if any of it fails.
+     */
+    private void connect() throws JMSException {
+        try {
+            doConnect();
+        } catch(JMSException | RuntimeException e) {
+            teardown(false);
+            throw e;
+        }
+    }
+
+    private void doConnect() throws JMSException {
+        if(standby != null) {
+            connection = standby;
+            standby = null;
+            log.info("switched to the standby connection for {}", config);
+        } else {
+            connection = SAPEnterpriseMessagingConnections.acquire(config, config.isSharedConnection(), failureListener);
+            log.debug("acquired connection for {} config", config);
+        }
+        if(connection instanceof JmsConnection) {
+            listener = new ReconnectListener();
+            ((JmsConnection) connection).addConnectionListener(listener);
+        }
+
+        int count = getSessionCount();
+        int prefetch = getPrefetch();
+        for(int i = 0; i < count; i++) {
+            Session session = isTransacted()
+                    ? connection.createSession(true, Session.SESSION_TRANSACTED)
+                    : connection.createSession(false, getAcknowledgeMode());
+            sessions.add(session);
+            if(prefetch > 0) {
+                SAPEnterpriseMessagingConnections.prefetch(session, prefetch);
+            }
+            log.debug("created session {} of {} for {} connection", i + 1, count, config);
+
+            List<Destination> destinations = new ArrayList<>();
+            for(String name : config.getJMSDestinations()) {
+                destinations.add(createJMSDestination(session, name));
+            }
+            connect(session, destinations);
+        }
 
         connection.start();
+        connected();
+        established = true;
         log.info("listening for messages on {}", config);
+
+        if(config.isStandbyConnection() && standby == null) {
+            openStandby();
+        }
     }
 
-    private Destination createJMSDestination(Session session) throws JMSException {
-        String jmsDestination = config.getJMSDestination();
+    private void reconnect() {
+        if(closed) {
+            return;
+        }
+        teardown(true);
+        boolean again = established;
+        try {
+            connect();
+            attempts = 0;
+            if(again) {
+                metrics.reconnects.increment();
+            }
+        } catch(Exception e) {
+            long delay = backoff(attempts++);
+            log.warn("failed to connect to {}, retrying in {} ms: {}", config, delay, e.getMessage());
+            schedule(this::reconnect, delay);
+        }
+    }
 
+    /**
+     * Disconnects the sessions and releases the connection.
+     *
+     * @param async {@code true} to close the sessions, and the connection if no other connector uses it, on a
+     *              separate thread
+     */
+    private void teardown(boolean async) {
+        if(connection == null) {
+            return;
+        }
+        try {
+            disconnect();
+        } catch(Exception e) {
+            log.warn("failed to disconnect from {}: {}", config, e.getMessage());
+        }
+        List<Session> closing = new ArrayList<>(sessions);
+        sessions.clear();
+        if(listener != null) {
+            ((JmsConnection) connection).removeConnectionListener(listener);
+            listener = null;
+        }
+        log.debug("releasing connection");
+        Connection released = connection;
+        boolean last = SAPEnterpriseMessagingConnections.detach(released, failureListener);
+        connection = null;
+        if(async) {
+            Thread thread = new Thread(() -> close(released, closing, last),
+                    "sap-em-closer-" + config.getConnectionName());
+            thread.setDaemon(true);
+            thread.start();
+        } else {
+            close(released, closing, last);
+        }
+    }
+
+    private void close(Connection released, List<Session> closing, boolean last) {
+        for(Session session : closing) {
+            try {
+                session.close();
+            } catch(JMSException e) {
+                log.warn("failed to close session: {}", e.getMessage());
+            }
+        }
+        if(!last) {
+            return;
+        }
+        try {
+            released.close();
+            log.info("closed connection");
+        } catch(JMSException e) {
+            log.warn("failed to close connection: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Opens a connection of its own, not shared with other connectors, to switch to when the current one fails.
+     * Creating and closing a session makes sure the connection is fully established and authenticated.
+     */
+    private void openStandby() {
+        if(closed || standby != null) {
+            return;
+        }
+        try {
+            standby = SAPEnterpriseMessagingConnections.acquire(config, false, failureListener);
+            standby.createSession(false, Session.AUTO_ACKNOWLEDGE).close();
+            standbyAttempts = 0;
+            log.debug("opened standby connection for {}", config);
+        } catch(JMSException e) {
+            closeStandby();
+            long delay = backoff(standbyAttempts++);
+            log.warn("failed to open standby connection for {}, retrying in {} ms: {}", config, delay, e.getMessage());
+            schedule(this::openStandby, delay);
+        }
+    }
+
+    private void closeStandby() {
+        if(standby == null) {
+            return;
+        }
+        try {
+            SAPEnterpriseMessagingConnections.release(standby, failureListener);
+        } catch(JMSException e) {
+            log.warn("failed to close standby connection: {}", e.getMessage());
+        }
+        standby = null;
+    }
+
+    /**
+     * @return the exponential backoff delay of the attempt with equal jitter, i.e. between half and all of it
+     */
+    private long backoff(int attempt) {
+        long delay = Math.min(config.getReconnectBackoffMaxMs(), config.getReconnectBackoffMs() << Math.min(attempt, 20));
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    /**
+     * @param jmsDestination the destination name prefixed with 'queue:' or 'topic:'
+     */
+    static Destination createJMSDestination(Session session, String jmsDestination) throws JMSException {
         return jmsDestination.startsWith("queue:")
                 ? session.createQueue(jmsDestination)
                 : session.createTopic(jmsDestination);
     }
 
+    /**
+     * Called for each session opened on the connection.
+     *
+     * @param destinations the configured destinations, in order
+     */
+    abstract void connect(Session session, List<Destination> destinations) throws JMSException;
+
+    /**
+     * Called once all sessions are connected and the connection is started.
+     */
+    void connected() {
+    }
+
+    /**
+     * Called before the sessions and the connection are closed, including when reconnecting; override to release
+     * resources bound to the sessions.
+     */
+    void disconnect() throws Exception {
+    }
+
+    /**
+     * Called once the connection is closed for good, before the metrics are closed.
+     */
+    void closed() throws Exception {
+    }
+
+    /**
+     * @return the number of sessions to open on the connection, each passed to {@link #connect(Session, List)}
+     */
+    int getSessionCount() {
+        return 1;
+    }
+
+    /**
+     * @return the number of messages prefetched by each consumer of the sessions, or 0 for the connection's default
+     */
+    int getPrefetch() {
+        return 0;
+    }
+
+    /**
+     * @return {@code true} if the sessions opened on the connection are transacted
+     */
+    boolean isTransacted() {
+        return false;
+    }
+
+    /**
+     * @return the acknowledge mode of the sessions opened on the connection unless they are transacted
+     */
+    int getAcknowledgeMode() {
+        return Session.CLIENT_ACKNOWLEDGE;
+    }
 
-    abstract void connect(Session session, Destination queue) throws JMSException;
+    private void closeMetrics() {
+        if(metrics == null) {
+            return;
+        }
+        if(config.getMetricsPort() > 0) {
+            SAPEnterpriseMessagingMetricsServer.unregister(config.getMetricsPort(), metrics);
+        }
+        metrics.close();
+        metrics = null;
+    }
 
     // -- getters
 
     protected SAPEnterpriseMessagingConfig getConfig() {
         return config;
     }
+
+    SAPEnterpriseMessagingMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Counts the reconnects performed by the Qpid JMS failover transport underneath the connection.
+     */
+    private class ReconnectListener implements JmsConnectionListener {
+
+        private final SAPEnterpriseMessagingMetrics.Counter reconnects = metrics.reconnects;
+
+        @Override
+        public void onConnectionRestored(URI remoteURI) {
+            reconnects.increment();
+            log.info("connection restored to {}", remoteURI);
+        }
+
+        @Override
+        public void onConnectionInterrupted(URI remoteURI) {
+            log.warn("connection interrupted to {}", remoteURI);
+        }
+
+        @Override
+        public void onConnectionEstablished(URI remoteURI) {
+        }
+
+        @Override
+        public void onConnectionFailure(Throwable error) {
+        }
+
+        @Override
+        public void onInboundMessage(JmsInboundMessageDispatch envelope) {
+        }
+
+        @Override
+        public void onSessionClosed(Session session, Throwable cause) {
+        }
+
+        @Override
+        public void onConsumerClosed(MessageConsumer consumer, Throwable cause) {
+        }
+
+        @Override
+        public void onProducerClosed(MessageProducer producer, Throwable cause) {
+        }
+    }
 }
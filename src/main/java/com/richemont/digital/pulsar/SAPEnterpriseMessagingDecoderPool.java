@@ -0,0 +1,173 @@
+package com.richemont.digital.pulsar;
+
+/*-
+ * #%L
+ * pulsar-sap-em-connector
+ * %%
+ * Copyright (C) 2020 Richemont SA
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import org.apache.pulsar.functions.api.Record;
+import org.slf4j.Logger;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.TextMessage;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.richemont.digital.pulsar.SAPEnterpriseMessagingConnector.JMSX_GROUP_ID;
+
+/**
+ * Decodes the messages received by all the sessions of a source on several threads, each with its own bounded queue.
+ * Messages with the same JMSXGroupID, the key of their records, always go to the same thread so that their records
+ * are handed off in the order they were received; messages without one are spread round robin. Each queued message
+ * holds a reservation of its body size in the buffer of the source, so that the queues count against its limits; a
+ * full buffer or queue blocks the receiver, leaving further messages prefetched by its consumer.
+ */
+class SAPEnterpriseMessagingDecoderPool implements AutoCloseable {
+
+    private final Worker[] workers;
+    private final SAPEnterpriseMessagingBuffer<Record<byte[]>> buffer;
+    private final AtomicInteger next = new AtomicInteger();
+
+    SAPEnterpriseMessagingDecoderPool(int threads, int queueSize, String name,
+                                      SAPEnterpriseMessagingReceiver.Decoder decoder,
+                                      SAPEnterpriseMessagingBuffer<Record<byte[]>> buffer,
+                                      SAPEnterpriseMessagingRateLimiter limiter, Logger log) {
+        this.buffer = buffer;
+        workers = new Worker[threads];
+        for(int i = 0; i < threads; i++) {
+            workers[i] = new Worker(queueSize, decoder, buffer, limiter, log);
+            Thread thread = new Thread(workers[i], name + "-" + i);
+            thread.setDaemon(true);
+            workers[i].thread = thread;
+            thread.start();
+        }
+    }
+
+    // -- AutoCloseable
+
+    /**
+     * Stops the threads, dropping the messages not decoded yet; they are redelivered once their sessions are closed.
+     * Waits for the threads to stop so that no record is handed off once the pool is closed.
+     */
+    @Override
+    public void close() throws InterruptedException {
+        for(Worker worker : workers) {
+            worker.thread.interrupt();
+        }
+        for(Worker worker : workers) {
+            worker.thread.join();
+        }
+    }
+
+    // -- SAPEnterpriseMessagingDecoderPool
+
+    /**
+     * Queues the message for decoding by the thread of its key, waiting for room in the buffer and in its queue.
+     */
+    void dispatch(SAPEnterpriseMessagingAcknowledger acknowledger, Message message)
+            throws JMSException, InterruptedException {
+        String key = message.getStringProperty(JMSX_GROUP_ID);
+        int index = key != null
+                ? Math.floorMod(key.hashCode(), workers.length)
+                : Math.floorMod(next.getAndIncrement(), workers.length);
+        long size = sizeOf(message);
+        buffer.reserve(size);
+        workers[index].queue.put(new Task(acknowledger, message, size));
+    }
+
+    /**
+     * @return the body size of the message before it is decoded, 0 if not known
+     */
+    private static long sizeOf(Message message) throws JMSException {
+        if(message instanceof BytesMessage) {
+            return ((BytesMessage) message).getBodyLength();
+        }
+        if(message instanceof TextMessage) {
+            String text = ((TextMessage) message).getText();
+            return text == null ? 0 : text.length();
+        }
+        return 0;
+    }
+
+    private static class Task {
+
+        final SAPEnterpriseMessagingAcknowledger acknowledger;
+        final Message message;
+        final long size;
+
+        Task(SAPEnterpriseMessagingAcknowledger acknowledger, Message message, long size) {
+            this.acknowledger = acknowledger;
+            this.message = message;
+            this.size = size;
+        }
+    }
+
+    private static class Worker implements Runnable {
+
+        final BlockingQueue<Task> queue;
+        private final SAPEnterpriseMessagingReceiver.Decoder decoder;
+        private final SAPEnterpriseMessagingBuffer<Record<byte[]>> buffer;
+        private final SAPEnterpriseMessagingRateLimiter limiter;
+        private final Logger log;
+        Thread thread;
+
+        Worker(int queueSize, SAPEnterpriseMessagingReceiver.Decoder decoder,
+               SAPEnterpriseMessagingBuffer<Record<byte[]>> buffer, SAPEnterpriseMessagingRateLimiter limiter,
+               Logger log) {
+            this.queue = new ArrayBlockingQueue<>(queueSize);
+            this.decoder = decoder;
+            this.buffer = buffer;
+            this.limiter = limiter;
+            this.log = log;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while(true) {
+                    Task task = queue.take();
+                    Record<byte[]> record = decoder.decode(task.acknowledger, task.message);
+                    if(record == null) {
+                        buffer.release(task.size);
+                        continue;
+                    }
+                    if(limiter != null) {
+                        limiter.acquire(record.getValue().length);
+                    }
+                    buffer.put(record, task.size);
+                }
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch(Exception e) {
+                log.error("failed to decode message from SAP Enterprise Messaging: {}", e.getMessage());
+                buffer.fail(e);
+            }
+            decoder.stopped();
+            log.debug("decoder stopped");
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.richemont.digital.pulsar;
+
+/*-
+ * #%L
+ * pulsar-sap-em-connector
+ * %%
+ * Copyright (C) 2020 Richemont SA
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import org.apache.pulsar.functions.api.Record;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded set of the 64-bit hashes of the ids of the messages or records already delivered, forgetting each after
+ * the deduplication window or once the set is full, oldest first. The hashes are kept in an open addressing table of
+ * primitive longs with linear probing and their insertion order in a ring of hashes and timestamps, so the set takes
+ * at most 48 bytes per entry allocated up front and adding to it does not allocate; two distinct ids only collide
+ * with a negligible probability.
+ */
+class SAPEnterpriseMessagingDeduplicator {
+
+    /** Property of the messages sent by a deduplicating sink identifying their record on its topic partition. */
+    static final String SEQUENCE_ID_PROPERTY = "PulsarSequenceId";
+
+    private static final long EMPTY = 0;
+
+    private final long window;
+    private final long[] table;
+    private final int mask;
+    private final long[] ring;
+    private final long[] times;
+    private int head;
+    private int size;
+
+    SAPEnterpriseMessagingDeduplicator(int maxEntries, long windowMs) {
+        this.window = TimeUnit.MILLISECONDS.toNanos(windowMs);
+        int capacity = Integer.highestOneBit(Math.max(maxEntries, 1) * 2 - 1) << 1;
+        this.table = new long[capacity];
+        this.mask = capacity - 1;
+        this.ring = new long[maxEntries];
+        this.times = new long[maxEntries];
+    }
+
+    // -- SAPEnterpriseMessagingDeduplicator
+
+    /**
+     * @return the partition, or topic if not partitioned, and sequence id of the record, e.g.
+     * 'persistent://public/default/orders-partition-0:42', or {@code null} if the record has no sequence id
+     */
+    static String getSequenceId(Record<?> record) {
+        Optional<Long> sequence = record.getRecordSequence();
+        if(!sequence.isPresent()) {
+            return null;
+        }
+        Optional<String> partition = record.getPartitionId();
+        return (partition.isPresent() ? partition.get() : record.getTopicName().orElse("")) + ":" + sequence.get();
+    }
+
+    /**
+     * @return the 64-bit FNV-1a hash of the id, finalized to spread its bits; never zero
+     */
+    static long hash(CharSequence id) {
+        long hash = 0xcbf29ce484222325L;
+        for(int i = 0; i < id.length(); i++) {
+            hash = (hash ^ id.charAt(i)) * 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    /**
+     * @return whether the hash was added within the window and not evicted since
+     */
+    synchronized boolean contains(long hash) {
+        expire(System.nanoTime());
+        return indexOf(hash) >= 0;
+    }
+
+    /**
+     * Adds the hash, evicting the oldest one if the set is full.
+     */
+    synchronized void add(long hash) {
+        long now = System.nanoTime();
+        expire(now);
+        if(indexOf(hash) >= 0) {
+            return;
+        }
+        if(size == ring.length) {
+            evict();
+        }
+        int slot = slot(hash);
+        while(table[slot] != EMPTY) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = hash;
+        int tail = (head + size) % ring.length;
+        ring[tail] = hash;
+        times[tail] = now;
+        size++;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    private void expire(long now) {
+        while(size > 0 && now - times[head] > window) {
+            evict();
+        }
+    }
+
+    private void evict() {
+        remove(ring[head]);
+        head = (head + 1) % ring.length;
+        size--;
+    }
+
+    private int indexOf(long hash) {
+        int slot = slot(hash);
+        long entry;
+        while((entry = table[slot]) != EMPTY) {
+            if(entry == hash) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Removes the hash, shifting back the entries probed past it so that no tombstones are needed.
+     */
+    private void remove(long hash) {
+        int hole = indexOf(hash);
+        if(hole < 0) {
+            return;
+        }
+        int slot = hole;
+        while(true) {
+            slot = (slot + 1) & mask;
+            long entry = table[slot];
+            if(entry == EMPTY) {
+                break;
+            }
+            int home = slot(entry);
+            boolean between = hole <= slot ? hole < home && home <= slot : hole < home || home <= slot;
+            if(!between) {
+                table[hole] = entry;
+                hole = slot;
+            }
+        }
+        table[hole] = EMPTY;
+    }
+
+    private int slot(long hash) {
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    private static long mix(long hash) {
+        hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+        hash = (hash ^ (hash >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash == EMPTY ? 1 : hash;
+    }
+}
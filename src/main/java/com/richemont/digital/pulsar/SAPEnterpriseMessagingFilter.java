@@ -0,0 +1,337 @@
+package com.richemont.digital.pulsar;
+
+/*-
+ * #%L
+ * pulsar-sap-em-connector
+ * %%
+ * Copyright (C) 2020 Richemont SA
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * A predicate on the headers and properties of a message, compiled once from an expression in a subset of the JMS
+ * message selector syntax so that evaluating it reads the values in place without allocating. For example:
+ * <pre>
+ * JMSType = 'order.created' AND (region IN ('EU', 'CH') OR priority >= 5) AND source NOT LIKE 'test%'
+ * </pre>
+ * Identifiers are property names or the JMSType, JMSCorrelationID and JMSPriority headers. Conditions are {@code =}
+ * and {@code <>} on string, numeric and boolean literals, {@code <}, {@code <=}, {@code >} and {@code >=} on numeric
+ * literals, {@code [NOT] IN} on string literals, {@code [NOT] LIKE} with {@code %} at the start or end of the pattern
+ * only and {@code IS [NOT] NULL}, combined with {@code AND}, {@code OR}, {@code NOT} and parentheses. Unlike JMS
+ * selectors a condition on a missing property is simply false, except for {@code IS NULL}.
+ */
+interface SAPEnterpriseMessagingFilter {
+
+    boolean test(Message message) throws JMSException;
+
+    /**
+     * @throws IllegalArgumentException if the expression is not valid
+     */
+    static SAPEnterpriseMessagingFilter compile(String expression) {
+        return new Parser(expression).parse();
+    }
+
+    /**
+     * Reads a header or property of a message.
+     */
+    interface Value {
+        Object get(Message message) throws JMSException;
+    }
+
+    /**
+     * A recursive descent parser building the predicate from the tokens of the expression.
+     */
+    class Parser {
+
+        private final String expression;
+        private final List<String> tokens = new ArrayList<>();
+        private int next;
+
+        Parser(String expression) {
+            this.expression = expression;
+            tokenize();
+        }
+
+        SAPEnterpriseMessagingFilter parse() {
+            SAPEnterpriseMessagingFilter filter = or();
+            if(next < tokens.size()) {
+                throw error("unexpected '" + tokens.get(next) + "'");
+            }
+            return filter;
+        }
+
+        private SAPEnterpriseMessagingFilter or() {
+            SAPEnterpriseMessagingFilter left = and();
+            while(accept("OR")) {
+                SAPEnterpriseMessagingFilter first = left, second = and();
+                left = message -> first.test(message) || second.test(message);
+            }
+            return left;
+        }
+
+        private SAPEnterpriseMessagingFilter and() {
+            SAPEnterpriseMessagingFilter left = not();
+            while(accept("AND")) {
+                SAPEnterpriseMessagingFilter first = left, second = not();
+                left = message -> first.test(message) && second.test(message);
+            }
+            return left;
+        }
+
+        private SAPEnterpriseMessagingFilter not() {
+            if(accept("NOT")) {
+                SAPEnterpriseMessagingFilter negated = not();
+                return message -> !negated.test(message);
+            }
+            if(accept("(")) {
+                SAPEnterpriseMessagingFilter filter = or();
+                expect(")");
+                return filter;
+            }
+            return condition();
+        }
+
+        private SAPEnterpriseMessagingFilter condition() {
+            String identifier = take();
+            if(!isIdentifier(identifier)) {
+                throw error("expected an identifier instead of '" + identifier + "'");
+            }
+            Value value = value(identifier);
+            if(accept("IS")) {
+                boolean negated = accept("NOT");
+                expect("NULL");
+                return message -> (value.get(message) == null) != negated;
+            }
+            boolean negated = accept("NOT");
+            if(accept("IN")) {
+                Set<String> literals = new HashSet<>();
+                expect("(");
+                do {
+                    literals.add(string(take()));
+                } while(accept(","));
+                expect(")");
+                return message -> {
+                    Object actual = value.get(message);
+                    return actual instanceof String && literals.contains(actual) != negated;
+                };
+            }
+            if(accept("LIKE")) {
+                return like(value, string(take()), negated);
+            }
+            if(negated) {
+                throw error("expected IN or LIKE after NOT");
+            }
+            return comparison(value, take(), take());
+        }
+
+        private SAPEnterpriseMessagingFilter comparison(Value value, String operator, String literal) {
+            if(isString(literal) || literal.equalsIgnoreCase("TRUE") || literal.equalsIgnoreCase("FALSE")) {
+                Object expected = isString(literal) ? string(literal) : Boolean.valueOf(literal.toLowerCase(Locale.ROOT));
+                switch(operator) {
+                    case "=":
+                        return message -> expected.equals(value.get(message));
+                    case "<>":
+                        return message -> {
+                            Object actual = value.get(message);
+                            return actual != null && !expected.equals(actual);
+                        };
+                    default:
+                        throw error("operator '" + operator + "' only applies to numbers");
+                }
+            }
+            double number;
+            try {
+                number = Double.parseDouble(literal);
+            } catch(NumberFormatException e) {
+                throw error("expected a literal instead of '" + literal + "'");
+            }
+            switch(operator) {
+                case "=":
+                    return message -> compare(value.get(message), number) == 0;
+                case "<>":
+                    return message -> {
+                        int comparison = compare(value.get(message), number);
+                        return comparison != 0 && comparison != Integer.MIN_VALUE;
+                    };
+                case "<":
+                    return message -> {
+                        int comparison = compare(value.get(message), number);
+                        return comparison < 0 && comparison != Integer.MIN_VALUE;
+                    };
+                case "<=":
+                    return message -> {
+                        int comparison = compare(value.get(message), number);
+                        return comparison <= 0 && comparison != Integer.MIN_VALUE;
+                    };
+                case ">":
+                    return message -> compare(value.get(message), number) > 0;
+                case ">=":
+                    return message -> compare(value.get(message), number) >= 0;
+                default:
+                    throw error("unknown operator '" + operator + "'");
+            }
+        }
+
+        private SAPEnterpriseMessagingFilter like(Value value, String pattern, boolean negated) {
+            boolean prefix = pattern.startsWith("%");
+            boolean suffix = pattern.length() > 1 && pattern.endsWith("%");
+            String text = pattern.substring(prefix ? 1 : 0, pattern.length() - (suffix ? 1 : 0));
+            if(text.contains("%") || text.contains("_")) {
+                throw error("LIKE patterns only support % at their start or end");
+            }
+            return message -> {
+                Object actual = value.get(message);
+                if(!(actual instanceof String)) {
+                    return false;
+                }
+                String string = (String) actual;
+                boolean matches = prefix && suffix ? string.contains(text)
+                        : prefix ? string.endsWith(text)
+                        : suffix ? string.startsWith(text)
+                        : string.equals(text);
+                return matches != negated;
+            };
+        }
+
+        /**
+         * @return the comparison of a numeric value with the number, or {@link Integer#MIN_VALUE} if it is not numeric
+         */
+        private static int compare(Object actual, double number) {
+            return actual instanceof Number ? Double.compare(((Number) actual).doubleValue(), number) : Integer.MIN_VALUE;
+        }
+
+        private static Value value(String identifier) {
+            switch(identifier) {
+                case "JMSType":
+                    return Message::getJMSType;
+                case "JMSCorrelationID":
+                    return Message::getJMSCorrelationID;
+                case "JMSPriority":
+                    return Message::getJMSPriority;
+                default:
+                    return message -> message.getObjectProperty(identifier);
+            }
+        }
+
+        private void tokenize() {
+            int i = 0;
+            while(i < expression.length()) {
+                char c = expression.charAt(i);
+                int start = i;
+                if(Character.isWhitespace(c)) {
+                    i++;
+                    continue;
+                }
+                if(c == '\'') {
+                    i++;
+                    while(i < expression.length()) {
+                        if(expression.charAt(i) == '\'') {
+                            if(i + 1 < expression.length() && expression.charAt(i + 1) == '\'') {
+                                i += 2;
+                                continue;
+                            }
+                            break;
+                        }
+                        i++;
+                    }
+                    if(i == expression.length()) {
+                        throw error("unterminated string");
+                    }
+                    i++;
+                } else if(Character.isJavaIdentifierStart(c)) {
+                    while(i < expression.length()
+                            && (Character.isJavaIdentifierPart(expression.charAt(i)) || expression.charAt(i) == '.')) {
+                        i++;
+                    }
+                } else if(Character.isDigit(c) || c == '-' || c == '.') {
+                    i++;
+                    while(i < expression.length() && (Character.isLetterOrDigit(expression.charAt(i))
+                            || expression.charAt(i) == '.' || expression.charAt(i) == '-' && isExponent(i - 1))) {
+                        i++;
+                    }
+                } else if(c == '<' || c == '>') {
+                    i++;
+                    if(i < expression.length() && (expression.charAt(i) == '=' || c == '<' && expression.charAt(i) == '>')) {
+                        i++;
+                    }
+                } else if(c == '=' || c == '(' || c == ')' || c == ',') {
+                    i++;
+                } else {
+                    throw error("unexpected character '" + c + "'");
+                }
+                tokens.add(expression.substring(start, i));
+            }
+        }
+
+        private boolean isExponent(int i) {
+            char c = expression.charAt(i);
+            return c == 'e' || c == 'E';
+        }
+
+        private boolean accept(String token) {
+            if(next < tokens.size() && tokens.get(next).equalsIgnoreCase(token)) {
+                next++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(String token) {
+            if(!accept(token)) {
+                throw error("expected '" + token + "'");
+            }
+        }
+
+        private String take() {
+            if(next == tokens.size()) {
+                throw error("unexpected end");
+            }
+            return tokens.get(next++);
+        }
+
+        private boolean isIdentifier(String token) {
+            return Character.isJavaIdentifierStart(token.charAt(0));
+        }
+
+        private static boolean isString(String token) {
+            return token.charAt(0) == '\'';
+        }
+
+        private String string(String token) {
+            if(!isString(token)) {
+                throw error("expected a string instead of '" + token + "'");
+            }
+            return token.substring(1, token.length() - 1).replace("''", "'");
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException("invalid filter \"" + expression + "\": " + message);
+        }
+    }
+}
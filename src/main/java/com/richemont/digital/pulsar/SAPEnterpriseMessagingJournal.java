@@ -0,0 +1,630 @@
+package com.richemont.digital.pulsar;
+
+/*-
+ * #%L
+ * pulsar-sap-em-connector
+ * %%
+ * Copyright (C) 2020 Richemont SA
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import org.apache.pulsar.functions.api.Record;
+import org.slf4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of the records the sink could not send, kept in memory-mapped segment files so that they
+ * survive a restart. A spilled record is acked once the segment it was written to has been forced to disk, which a
+ * flusher does for all the records spilled in the meantime every few millis. The records are read back in order as
+ * {@link Entry entries} that settle themselves: a delivered entry is marked in place by negating its length and a
+ * segment whose entries are all delivered is deleted and unmapped. A replay cursor points to the oldest entry not
+ * delivered yet and only moves forward past delivered entries; a failed entry makes the reader start over from the
+ * cursor once the entries still in flight are settled, and the entries after it that were delivered in the meantime
+ * are not marked, so that they are replayed again in order behind it.
+ * <p>
+ * Each entry is a length and a CRC-32 of its payload followed by the payload, holding the destination, key,
+ * partition, sequence id, properties and value of the record; reopening the journal stops at the first entry that
+ * is missing or torn.
+ */
+class SAPEnterpriseMessagingJournal implements AutoCloseable {
+
+    private static final String PREFIX = "spill-";
+    private static final String SUFFIX = ".journal";
+    private static final int HEADER = 8;
+    private static final long FLUSH_INTERVAL = 10;
+    private static final Unmapper UNMAPPER = unmapper();
+
+    private final File directory;
+    private final int segmentBytes;
+    private final long maxBytes;
+    private final SAPEnterpriseMessagingMetrics metrics;
+    private final Logger log;
+    private final ScheduledExecutorService flusher;
+
+    private final List<Segment> segments = new ArrayList<>();
+    private final Set<Segment> dirty = Collections.newSetFromMap(new IdentityHashMap<>());
+    private List<Segment> released = new ArrayList<>();
+    private final ExposedOutput output = new ExposedOutput();
+    private final DataOutputStream data = new DataOutputStream(output);
+    private final CRC32 crc = new CRC32();
+    private List<Record<byte[]>> pending = new ArrayList<>();
+    private long sequence;
+    private long bytes;
+    private long entries;
+    private long delivered;
+    private Segment writer;
+    private Segment reader;
+    private int readPosition;
+    private Segment cursor;
+    private int cursorPosition;
+    private int inflight;
+    private Entry failure;
+
+    /**
+     * Opens the journal in the directory, recovering the entries of its segments that were not delivered yet.
+     *
+     * @param segmentBytes the size of the segment files, larger for a record that does not fit
+     * @param maxBytes the maximum total size of the segment files
+     */
+    SAPEnterpriseMessagingJournal(File directory, int segmentBytes, long maxBytes, SAPEnterpriseMessagingMetrics metrics,
+                                  Logger log) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxBytes = maxBytes;
+        this.metrics = metrics;
+        this.log = log;
+        if(!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("could not create the spill directory " + directory);
+        }
+        recover();
+        flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "sap-em-journal-" + directory.getName());
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    // -- AutoCloseable
+
+    /**
+     * Stops flushing after acking the records spilled last; the entries not delivered yet are kept for the next time
+     * the journal is opened.
+     */
+    @Override
+    public void close() throws InterruptedException {
+        flusher.shutdown();
+        flusher.awaitTermination(1, TimeUnit.SECONDS);
+        flush();
+    }
+
+    // -- SAPEnterpriseMessagingJournal
+
+    /**
+     * Appends the record, acking it once it is on disk.
+     *
+     * @param destination the JMS name of the destination the record is routed to, or {@code null}
+     * @return {@code false} if the record could not be spilled because the journal is full or the record is one of
+     * its entries
+     */
+    synchronized boolean spill(Record<byte[]> record, String destination) {
+        if(record instanceof Entry) {
+            return false;
+        }
+        try {
+            output.reset();
+            writeString(destination);
+            writeString(record.getKey().orElse(null));
+            Optional<String> partition = record.getPartitionId();
+            writeString(partition.isPresent() ? partition.get() : record.getTopicName().orElse(null));
+            data.writeLong(record.getRecordSequence().orElse(-1L));
+            Map<String, String> properties = record.getProperties();
+            data.writeInt(properties.size());
+            for(Map.Entry<String, String> property : properties.entrySet()) {
+                writeString(property.getKey());
+                writeString(property.getValue());
+            }
+            byte[] value = record.getValue();
+            data.writeInt(value.length);
+            data.write(value);
+        } catch(IOException e) {
+            // not thrown by the in-memory stream
+            throw new IllegalStateException(e);
+        }
+        int length = output.size();
+        if((writer == null || writer.position + HEADER + length > writer.buffer.capacity()) && !roll(HEADER + length)) {
+            return false;
+        }
+        crc.reset();
+        crc.update(output.buffer(), 0, length);
+        MappedByteBuffer buffer = writer.buffer;
+        buffer.putInt(writer.position + 4, (int) crc.getValue());
+        ByteBuffer payload = buffer.duplicate();
+        ((Buffer) payload).position(writer.position + HEADER);
+        payload.put(output.buffer(), 0, length);
+        // the length goes last so that a torn entry reads as the end of the journal
+        buffer.putInt(writer.position, length);
+        writer.position += HEADER + length;
+        writer.entries++;
+        entries++;
+        dirty.add(writer);
+        pending.add(record);
+        metrics.spilled.increment();
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * @return {@code true} if all the entries have been delivered
+     */
+    synchronized boolean isEmpty() {
+        return delivered == entries;
+    }
+
+    /**
+     * @return the number of entries not delivered yet
+     */
+    synchronized long size() {
+        return entries - delivered;
+    }
+
+    /**
+     * @return the total size of the segment files
+     */
+    synchronized long bytes() {
+        return bytes;
+    }
+
+    /**
+     * Reads the next entry to deliver, in order.
+     *
+     * @param timeout millis to wait for an entry
+     * @return the entry or {@code null} if there was none within the timeout
+     */
+    synchronized Entry next(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while(true) {
+            if(failure != null && inflight == 0) {
+                failure = null;
+                reader = cursor;
+                readPosition = cursorPosition;
+            }
+            Entry entry = failure != null ? null : read();
+            if(entry != null) {
+                inflight++;
+                return entry;
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if(remaining <= 0) {
+                return null;
+            }
+            wait(remaining);
+        }
+    }
+
+    private Entry read() {
+        while(reader != null) {
+            if(readPosition < reader.position) {
+                int length = reader.buffer.getInt(readPosition);
+                int offset = readPosition;
+                readPosition += HEADER + Math.abs(length);
+                if(length > 0) {
+                    return decode(reader, offset, length);
+                }
+            } else if(reader == writer) {
+                return null;
+            } else {
+                reader = segments.get(segments.indexOf(reader) + 1);
+                readPosition = 0;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Moves the replay cursor past the delivered entries.
+     */
+    private void advance() {
+        while(cursor != null) {
+            if(cursorPosition < cursor.position) {
+                int length = cursor.buffer.getInt(cursorPosition);
+                if(length > 0) {
+                    return;
+                }
+                cursorPosition += HEADER - length;
+            } else if(cursor == writer) {
+                return;
+            } else {
+                cursor = segments.get(segments.indexOf(cursor) + 1);
+                cursorPosition = 0;
+            }
+        }
+    }
+
+    /**
+     * Marks a delivered entry unless it follows a failed one, which has it replayed behind the failed one.
+     */
+    private synchronized void settled(Entry entry, boolean success) {
+        inflight--;
+        if(failure == null || entry.precedes(failure)) {
+            if(success) {
+                entry.segment.buffer.putInt(entry.offset, -entry.length);
+                entry.segment.delivered++;
+                delivered++;
+                advance();
+                deleteDelivered();
+            } else {
+                failure = entry;
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * Forces the segments written to disk and acks the records spilled to them.
+     */
+    private void flush() {
+        List<Record<byte[]>> acking;
+        List<Segment> forcing;
+        List<Segment> deleting;
+        synchronized(this) {
+            if(pending.isEmpty() && released.isEmpty()) {
+                return;
+            }
+            acking = pending;
+            pending = new ArrayList<>();
+            forcing = new ArrayList<>(dirty);
+            dirty.clear();
+            deleting = released;
+            released = new ArrayList<>();
+        }
+        for(Segment segment : forcing) {
+            segment.buffer.force();
+        }
+        for(Record<byte[]> record : acking) {
+            record.ack();
+        }
+        // unmapped here, after forcing, so that no segment is forced once unmapped
+        for(Segment segment : deleting) {
+            UNMAPPER.unmap(segment.buffer);
+            if(!segment.file.delete()) {
+                log.warn("failed to delete the spill segment {}", segment.file);
+            }
+        }
+    }
+
+    /**
+     * Starts a new segment large enough for the entry.
+     *
+     * @return {@code false} if the journal is full or the segment could not be created
+     */
+    private boolean roll(int size) {
+        int capacity = Math.max(segmentBytes, size);
+        if(bytes + capacity > maxBytes) {
+            return false;
+        }
+        File file = new File(directory, String.format("%s%020d%s", PREFIX, sequence, SUFFIX));
+        try {
+            writer = new Segment(file, sequence++, map(file, capacity));
+        } catch(IOException e) {
+            log.warn("failed to create the spill segment {}: {}", file, e.getMessage());
+            return false;
+        }
+        segments.add(writer);
+        bytes += capacity;
+        if(reader == null) {
+            reader = writer;
+            readPosition = 0;
+            cursor = writer;
+            cursorPosition = 0;
+        }
+        deleteDelivered();
+        return true;
+    }
+
+    /**
+     * Deletes the segments, other than the one written to, whose entries are all delivered; their files are deleted
+     * and unmapped by the flusher.
+     */
+    private void deleteDelivered() {
+        for(int i = 0; i < segments.size(); i++) {
+            Segment segment = segments.get(i);
+            if(segment == writer || segment.delivered < segment.entries) {
+                continue;
+            }
+            if(segment == reader) {
+                reader = segments.get(i + 1);
+                readPosition = 0;
+            }
+            if(segment == cursor) {
+                cursor = segments.get(i + 1);
+                cursorPosition = 0;
+            }
+            segments.remove(i--);
+            dirty.remove(segment);
+            released.add(segment);
+            bytes -= segment.buffer.capacity();
+        }
+    }
+
+    private void recover() throws IOException {
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+        if(files == null) {
+            throw new IOException("could not list the spill directory " + directory);
+        }
+        Arrays.sort(files);
+        for(File file : files) {
+            long id = Long.parseLong(
+                    file.getName().substring(PREFIX.length(), file.getName().length() - SUFFIX.length()));
+            sequence = Math.max(sequence, id + 1);
+            Segment segment = new Segment(file, id, map(file, (int) file.length()));
+            scan(segment);
+            segments.add(segment);
+            bytes += segment.buffer.capacity();
+            entries += segment.entries;
+            delivered += segment.delivered;
+        }
+        if(!segments.isEmpty()) {
+            writer = segments.get(segments.size() - 1);
+            reader = segments.get(0);
+            cursor = reader;
+        }
+        deleteDelivered();
+        advance();
+        reader = cursor;
+        readPosition = cursorPosition;
+        if(entries > delivered) {
+            log.info("recovered {} spilled records from {}", entries - delivered, directory);
+        }
+    }
+
+    /**
+     * Counts the entries of the segment up to the first one that is missing or torn.
+     */
+    private void scan(Segment segment) {
+        MappedByteBuffer buffer = segment.buffer;
+        int position = 0;
+        while(position + HEADER <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            int size = Math.abs(length);
+            if(length == 0 || size > buffer.capacity() - position - HEADER) {
+                break;
+            }
+            if(length > 0) {
+                ByteBuffer payload = buffer.duplicate();
+                ((Buffer) payload).limit(position + HEADER + length).position(position + HEADER);
+                crc.reset();
+                crc.update(payload);
+                if((int) crc.getValue() != buffer.getInt(position + 4)) {
+                    break;
+                }
+            } else {
+                segment.delivered++;
+            }
+            segment.entries++;
+            position += HEADER + size;
+        }
+        segment.position = position;
+    }
+
+    private Entry decode(Segment segment, int offset, int length) {
+        ByteBuffer payload = segment.buffer.duplicate();
+        ((Buffer) payload).position(offset + HEADER);
+        String destination = readString(payload);
+        String key = readString(payload);
+        String partition = readString(payload);
+        long sequence = payload.getLong();
+        int count = payload.getInt();
+        Map<String, String> properties = count == 0 ? Collections.emptyMap() : new HashMap<>();
+        for(int i = 0; i < count; i++) {
+            properties.put(readString(payload), readString(payload));
+        }
+        byte[] value = new byte[payload.getInt()];
+        payload.get(value);
+        return new Entry(segment, offset, length, destination, key, partition, sequence, properties, value);
+    }
+
+    private void writeString(String value) throws IOException {
+        if(value == null) {
+            data.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        data.writeInt(bytes.length);
+        data.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if(length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        try(RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    /**
+     * @return an unmapper releasing the mapping of a buffer ahead of its garbage collection, or a no-op one if the
+     * runtime provides none
+     */
+    private static Unmapper unmapper() {
+        try {
+            // Java 9 and later
+            Class<?> type = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = type.getMethod("invokeCleaner", ByteBuffer.class);
+            Field field = type.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            Object unsafe = field.get(null);
+            return buffer -> invokeCleaner.invoke(unsafe, buffer);
+        } catch(ReflectiveOperationException | RuntimeException e) {
+            // Java 8
+        }
+        try {
+            Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+            Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            return buffer -> clean.invoke(cleaner.invoke(buffer));
+        } catch(ReflectiveOperationException | RuntimeException e) {
+            return buffer -> { };
+        }
+    }
+
+    private interface Unmapper {
+
+        void invoke(MappedByteBuffer buffer) throws ReflectiveOperationException;
+
+        default void unmap(MappedByteBuffer buffer) {
+            try {
+                invoke(buffer);
+            } catch(ReflectiveOperationException | RuntimeException e) {
+                // left to the garbage collector
+            }
+        }
+    }
+
+    private static class Segment {
+
+        final File file;
+        final long id;
+        final MappedByteBuffer buffer;
+        int position;
+        int entries;
+        int delivered;
+
+        Segment(File file, long id, MappedByteBuffer buffer) {
+            this.file = file;
+            this.id = id;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * A spilled record read back from the journal; acking it marks it delivered and failing it has it read again.
+     */
+    class Entry implements Record<byte[]> {
+
+        private final Segment segment;
+        private final int offset;
+        private final int length;
+        final String destination;
+        private final String key;
+        private final String partition;
+        private final long sequence;
+        private final Map<String, String> properties;
+        private final byte[] value;
+
+        Entry(Segment segment, int offset, int length, String destination, String key, String partition,
+              long sequence, Map<String, String> properties, byte[] value) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.destination = destination;
+            this.key = key;
+            this.partition = partition;
+            this.sequence = sequence;
+            this.properties = properties;
+            this.value = value;
+        }
+
+        @Override
+        public Optional<String> getKey() {
+            return Optional.ofNullable(key);
+        }
+
+        @Override
+        public byte[] getValue() {
+            return value;
+        }
+
+        @Override
+        public Optional<String> getPartitionId() {
+            return Optional.ofNullable(partition);
+        }
+
+        @Override
+        public Optional<Long> getRecordSequence() {
+            return sequence < 0 ? Optional.empty() : Optional.of(sequence);
+        }
+
+        @Override
+        public Map<String, String> getProperties() {
+            return properties;
+        }
+
+        /**
+         * @return {@code true} if this entry is before the other one in the journal
+         */
+        boolean precedes(Entry other) {
+            return segment.id < other.segment.id || segment == other.segment && offset < other.offset;
+        }
+
+        @Override
+        public void ack() {
+            settled(this, true);
+        }
+
+        @Override
+        public void fail() {
+            settled(this, false);
+        }
+    }
+
+    /**
+     * Exposes the buffer of the stream the entries are serialized to, so that it is written out without copying it.
+     */
+    private static class ExposedOutput extends ByteArrayOutputStream {
+
+        byte[] buffer() {
+            return buf;
+        }
+    }
+}
@@ -0,0 +1,320 @@
+package com.richemont.digital.pulsar;
+
+/*-
+ * #%L
+ * pulsar-sap-em-connector
+ * %%
+ * Copyright (C) 2020 Richemont SA
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.ObjDoubleConsumer;
+
+/**
+ * Counters, gauges and latency histograms of a source or sink. Updating them is lock free so they can be used on the
+ * hot paths; they are published periodically through the Pulsar context, counters as the increase and histograms as
+ * percentiles since the previous publication, and served in the Prometheus text format when a metrics port is set.
+ */
+class SAPEnterpriseMessagingMetrics implements AutoCloseable {
+
+    static final String SOURCE = "source";
+    static final String SINK = "sink";
+
+    // -- source
+    final Counter received = new Counter("sap_em_messages_received_total",
+            "Messages received from SAP Enterprise Messaging.");
+    final Counter receivedBytes = new Counter("sap_em_bytes_received_total",
+            "Body bytes received from SAP Enterprise Messaging.");
+    final Counter allocatedBytes = new Counter("sap_em_body_allocated_bytes_total",
+            "Bytes allocated while copying received message bodies.");
+    final Counter filtered = new Counter("sap_em_messages_filtered_total",
+            "Messages acknowledged without being forwarded because they did not match the filter.");
+    final Histogram receiveWait = new Histogram("sap_em_receive_wait_seconds",
+            "Time Pulsar waited for the next received record.");
+    final Histogram ackLatency = new Histogram("sap_em_ack_latency_seconds",
+            "Time from receiving a message until Pulsar acked or failed its record.");
+
+    // -- sink
+    final Counter sent = new Counter("sap_em_messages_sent_total",
+            "Messages sent to SAP Enterprise Messaging.");
+    final Counter sentBytes = new Counter("sap_em_bytes_sent_total",
+            "Body bytes sent to SAP Enterprise Messaging.");
+    final Histogram sendLatency = new Histogram("sap_em_send_latency_seconds",
+            "Time from sending a message until SAP Enterprise Messaging completed it.");
+    final Counter spilled = new Counter("sap_em_records_spilled_total",
+            "Records written to the spill journal because they could not be sent.");
+
+    // -- common
+    final Counter failed = new Counter("sap_em_records_failed_total",
+            "Records failed, either by Pulsar or because they could not be sent.");
+    final Counter rollbacks = new Counter("sap_em_rollbacks_total",
+            "Batches rolled back or recovered for redelivery.");
+    final Counter reconnects = new Counter("sap_em_reconnects_total",
+            "Connections to SAP Enterprise Messaging restored after an interruption.");
+    final Counter duplicates = new Counter("sap_em_duplicates_total",
+            "Messages or records dropped as already delivered.");
+    final Counter throttled = new Counter("sap_em_throttled_total",
+            "Messages or records delayed by the rate limit.");
+
+    private final String role;
+    private final String labels;
+    private final List<Metric> metrics = new CopyOnWriteArrayList<>();
+    private ScheduledExecutorService executor;
+
+    /**
+     * @param name the fully qualified name of the Pulsar source or sink, tenant/namespace/name
+     * @param instanceId the id of the Pulsar instance running the connector
+     */
+    SAPEnterpriseMessagingMetrics(String role, String connectionName, String name, int instanceId) {
+        this.role = role;
+        this.labels = "connection=\"" + escape(connectionName) + "\",role=\"" + role
+                + "\",name=\"" + escape(name) + "\",instance_id=\"" + instanceId + "\"";
+        if(SOURCE.equals(role)) {
+            register(received, receivedBytes, allocatedBytes, filtered, receiveWait, ackLatency);
+        } else {
+            register(sent, sentBytes, sendLatency, spilled);
+        }
+        register(failed, rollbacks, reconnects, duplicates, throttled);
+    }
+
+    // -- AutoCloseable
+
+    @Override
+    public void close() {
+        if(executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    // -- SAPEnterpriseMessagingMetrics
+
+    /**
+     * Registers a gauge sampled whenever the metrics are published or scraped.
+     */
+    void gauge(String name, String help, LongSupplier value) {
+        metrics.add(new Gauge(name, help, value));
+    }
+
+    /**
+     * Publishes the metrics to the recorder at a fixed rate until closed.
+     */
+    void start(ObjDoubleConsumer<String> recorder, long interval) {
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "sap-em-metrics-" + role);
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleAtFixedRate(() -> publish(recorder), interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    void publish(ObjDoubleConsumer<String> recorder) {
+        for(Metric metric : metrics) {
+            metric.publish(recorder);
+        }
+    }
+
+    /**
+     * Adds the samples of the metrics in the Prometheus text format to the samples of each metric name.
+     */
+    void collect(Map<Metric, StringBuilder> samples) {
+        for(Metric metric : metrics) {
+            metric.write(samples.computeIfAbsent(metric, m -> new StringBuilder()), labels);
+        }
+    }
+
+    private void register(Metric... metrics) {
+        for(Metric metric : metrics) {
+            this.metrics.add(metric);
+        }
+    }
+
+    private static String escape(String value) {
+        return String.valueOf(value).replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * A named metric; metrics are equal by name so that the samples of several connectors can be grouped.
+     */
+    static abstract class Metric {
+
+        final String name;
+        final String help;
+        final String type;
+
+        Metric(String name, String help, String type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+
+        abstract void publish(ObjDoubleConsumer<String> recorder);
+
+        abstract void write(StringBuilder out, String labels);
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Metric && name.equals(((Metric) o).name);
+        }
+
+        @Override
+        public int hashCode() {
+            return name.hashCode();
+        }
+    }
+
+    static class Counter extends Metric {
+
+        private final LongAdder value = new LongAdder();
+        private long published;
+
+        Counter(String name, String help) {
+            super(name, help, "counter");
+        }
+
+        void increment() {
+            value.increment();
+        }
+
+        void add(long amount) {
+            value.add(amount);
+        }
+
+        @Override
+        void publish(ObjDoubleConsumer<String> recorder) {
+            long current = value.sum();
+            recorder.accept(name, current - published);
+            published = current;
+        }
+
+        @Override
+        void write(StringBuilder out, String labels) {
+            out.append(name).append('{').append(labels).append("} ").append(value.sum()).append('\n');
+        }
+    }
+
+    static class Gauge extends Metric {
+
+        private final LongSupplier value;
+
+        Gauge(String name, String help, LongSupplier value) {
+            super(name, help, "gauge");
+            this.value = value;
+        }
+
+        @Override
+        void publish(ObjDoubleConsumer<String> recorder) {
+            recorder.accept(name, value.getAsLong());
+        }
+
+        @Override
+        void write(StringBuilder out, String labels) {
+            out.append(name).append('{').append(labels).append("} ").append(value.getAsLong()).append('\n');
+        }
+    }
+
+    /**
+     * Latency histogram with power of two buckets from one microsecond to about a minute.
+     */
+    static class Histogram extends Metric {
+
+        private static final int BUCKETS = 27;
+
+        private final LongAdder[] counts = new LongAdder[BUCKETS + 1];
+        private final LongAdder sum = new LongAdder();
+        private final long[] published = new long[BUCKETS + 1];
+
+        Histogram(String name, String help) {
+            super(name, help, "histogram");
+            for(int i = 0; i < counts.length; i++) {
+                counts[i] = new LongAdder();
+            }
+        }
+
+        /**
+         * Records a duration measured with {@link System#nanoTime()}.
+         */
+        void record(long nanos) {
+            long micros = Math.max(nanos / 1000, 0);
+            int bucket = micros <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(micros - 1);
+            counts[Math.min(bucket, BUCKETS)].increment();
+            sum.add(micros);
+        }
+
+        /**
+         * Publishes the count and the 50th, 99th and 99.9th percentile upper bounds in seconds since the last call.
+         */
+        @Override
+        void publish(ObjDoubleConsumer<String> recorder) {
+            long[] interval = new long[counts.length];
+            long total = 0;
+            for(int i = 0; i < counts.length; i++) {
+                long current = counts[i].sum();
+                interval[i] = current - published[i];
+                published[i] = current;
+                total += interval[i];
+            }
+            recorder.accept(name + "_count", total);
+            if(total > 0) {
+                recorder.accept(name + "_p50", percentile(interval, total, 0.5));
+                recorder.accept(name + "_p99", percentile(interval, total, 0.99));
+                recorder.accept(name + "_p999", percentile(interval, total, 0.999));
+            }
+        }
+
+        @Override
+        void write(StringBuilder out, String labels) {
+            long cumulative = 0;
+            for(int i = 0; i < counts.length; i++) {
+                cumulative += counts[i].sum();
+                out.append(name).append("_bucket{").append(labels).append(",le=\"")
+                        .append(i < BUCKETS ? Double.toString(bound(i)) : "+Inf").append("\"} ")
+                        .append(cumulative).append('\n');
+            }
+            out.append(name).append("_sum{").append(labels).append("} ").append(sum.sum() / 1e6).append('\n');
+            out.append(name).append("_count{").append(labels).append("} ").append(cumulative).append('\n');
+        }
+
+        private static double percentile(long[] counts, long total, double quantile) {
+            long rank = (long) Math.ceil(total * quantile);
+            long cumulative = 0;
+            for(int i = 0; i < BUCKETS; i++) {
+                cumulative += counts[i];
+                if(cumulative >= rank) {
+                    return bound(i);
+                }
+            }
+            return bound(BUCKETS);
+        }
+
+        private static double bound(int bucket) {
+            return (1L << bucket) / 1e6;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.richemont.digital.pulsar;
+
+/*-
+ * #%L
+ * pulsar-sap-em-connector
+ * %%
+ * Copyright (C) 2020 Richemont SA
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Serves the metrics of all sources and sinks of the process that share a metrics port in the Prometheus text format
+ * on {@code /metrics}. The server is started by the first connector registering on a port and stopped when the last
+ * one is unregistered.
+ */
+class SAPEnterpriseMessagingMetricsServer {
+
+    private static final Map<Integer, SAPEnterpriseMessagingMetricsServer> SERVERS = new HashMap<>();
+
+    private final HttpServer server;
+    private final List<SAPEnterpriseMessagingMetrics> metrics = new CopyOnWriteArrayList<>();
+
+    private SAPEnterpriseMessagingMetricsServer(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/metrics", this::handle);
+        server.start();
+    }
+
+    static synchronized void register(int port, SAPEnterpriseMessagingMetrics metrics) throws IOException {
+        SAPEnterpriseMessagingMetricsServer server = SERVERS.get(port);
+        if(server == null) {
+            server = new SAPEnterpriseMessagingMetricsServer(port);
+            SERVERS.put(port, server);
+        }
+        server.metrics.add(metrics);
+    }
+
+    static synchronized void unregister(int port, SAPEnterpriseMessagingMetrics metrics) {
+        SAPEnterpriseMessagingMetricsServer server = SERVERS.get(port);
+        if(server == null) {
+            return;
+        }
+        server.metrics.remove(metrics);
+        if(server.metrics.isEmpty()) {
+            server.server.stop(0);
+            SERVERS.remove(port);
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        Map<SAPEnterpriseMessagingMetrics.Metric, StringBuilder> samples = new LinkedHashMap<>();
+        for(SAPEnterpriseMessagingMetrics connector : metrics) {
+            connector.collect(samples);
+        }
+        StringBuilder out = new StringBuilder();
+        for(Map.Entry<SAPEnterpriseMessagingMetrics.Metric, StringBuilder> entry : samples.entrySet()) {
+            SAPEnterpriseMessagingMetrics.Metric metric = entry.getKey();
+            out.append("# HELP ").append(metric.name).append(' ').append(metric.help).append('\n');
+            out.append("# TYPE ").append(metric.name).append(' ').append(metric.type).append('\n');
+            out.append(entry.getValue());
+        }
+        byte[] body = out.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try(OutputStream stream = exchange.getResponseBody()) {
+            stream.write(body);
+        }
+    }
+}
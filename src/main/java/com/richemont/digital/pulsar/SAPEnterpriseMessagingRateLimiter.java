@@ -0,0 +1,108 @@
+package com.richemont.digital.pulsar;
+
+/*-
+ * #%L
+ * pulsar-sap-em-connector
+ * %%
+ * Copyright (C) 2020 Richemont SA
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the rate of messages and bytes with a token bucket for each, refilled continuously and holding up to a tenth
+ * of a second's worth so that bursts stay short. A caller only waits for the tokens taken by earlier callers before
+ * taking its own, which may leave the bucket in debt; a message larger than the bucket therefore never blocks, it
+ * delays the following ones instead. The wait happens outside the lock so that concurrent callers queue up for
+ * consecutive slots.
+ */
+class SAPEnterpriseMessagingRateLimiter {
+
+    private static final double BURST_SECONDS = 0.1;
+
+    private final Bucket messages;
+    private final Bucket bytes;
+    private final SAPEnterpriseMessagingMetrics metrics;
+
+    /**
+     * @param messagesPerSecond the maximum rate of messages, 0 for no limit
+     * @param bytesPerSecond the maximum rate of bytes, 0 for no limit
+     */
+    SAPEnterpriseMessagingRateLimiter(long messagesPerSecond, long bytesPerSecond, SAPEnterpriseMessagingMetrics metrics) {
+        this.messages = messagesPerSecond > 0 ? new Bucket(messagesPerSecond, 1) : null;
+        this.bytes = bytesPerSecond > 0 ? new Bucket(bytesPerSecond, 0) : null;
+        this.metrics = metrics;
+    }
+
+    // -- SAPEnterpriseMessagingRateLimiter
+
+    /**
+     * Takes the tokens of a message, waiting for the earlier messages to be within the rate.
+     *
+     * @param size the message size in bytes
+     */
+    void acquire(long size) throws InterruptedException {
+        long wait = 0;
+        synchronized(this) {
+            long now = System.nanoTime();
+            if(messages != null) {
+                wait = messages.take(now, 1);
+            }
+            if(bytes != null) {
+                wait = Math.max(wait, bytes.take(now, size));
+            }
+        }
+        if(wait > 0) {
+            metrics.throttled.increment();
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    private static class Bucket {
+
+        private final double rate;
+        private final double capacity;
+        private double tokens;
+        private long refilled = System.nanoTime();
+
+        /**
+         * @param perSecond tokens added per second
+         * @param minCapacity minimum number of tokens held
+         */
+        Bucket(long perSecond, double minCapacity) {
+            this.rate = perSecond / 1e9;
+            this.capacity = Math.max(perSecond * BURST_SECONDS, minCapacity);
+            this.tokens = capacity;
+        }
+
+        /**
+         * @return nanos to wait for the bucket to be out of debt before the tokens taken may be used
+         */
+        long take(long now, long count) {
+            tokens = Math.min(capacity, tokens + (now - refilled) * rate);
+            refilled = now;
+            long wait = tokens >= 0 ? 0 : (long) Math.ceil(-tokens / rate);
+            tokens -= count;
+            return wait;
+        }
+    }
+}
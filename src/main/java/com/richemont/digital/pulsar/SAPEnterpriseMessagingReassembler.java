@@ -0,0 +1,288 @@
+package com.richemont.digital.pulsar;
+
+/*-
+ * #%L
+ * pulsar-sap-em-connector
+ * %%
+ * Copyright (C) 2020 Richemont SA
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import org.slf4j.Logger;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reassembles the bodies of records split into chunks by the sink. Each chunk is copied into the body of its group
+ * as it is received, which is allocated once at the full size; the group is handed out once all of its chunks are
+ * received, in any order and from any session.
+ * <p>
+ * The total size of the bodies being reassembled is capped, chunks of new groups are refused while the cap is
+ * reached, and groups not completed within the timeout are expired, dropping their chunks for good: redelivering
+ * them would only expire the same incomplete record again. Chunks whose properties are invalid on their own are
+ * refused, and a chunk whose count or record size differs from its group, e.g. from a retry of the record after the
+ * sink's configuration changed, replaces the group.
+ */
+class SAPEnterpriseMessagingReassembler {
+
+    static final String CHUNK_ID = "PulsarChunkId";
+    static final String CHUNK_INDEX = "PulsarChunkIndex";
+    static final String CHUNK_COUNT = "PulsarChunkCount";
+    static final String CHUNK_OFFSET = "PulsarChunkOffset";
+    static final String CHUNK_TOTAL_SIZE = "PulsarChunkTotalSize";
+
+    private final long maxBytes;
+    private final long timeout;
+    private final SAPEnterpriseMessagingMetrics metrics;
+    private final Logger log;
+    private final ThreadLocal<byte[]> scratch = ThreadLocal.withInitial(() -> new byte[8 * 1024]);
+
+    private final Map<String, Group> groups = new HashMap<>();
+    private long bytes;
+    private ScheduledExecutorService expirer;
+
+    SAPEnterpriseMessagingReassembler(long maxBytes, long timeout, SAPEnterpriseMessagingMetrics metrics,
+                                      Logger log) {
+        this.maxBytes = maxBytes;
+        this.timeout = timeout;
+        this.metrics = metrics;
+        this.log = log;
+    }
+
+    static boolean isChunk(Message message) throws JMSException {
+        return message.propertyExists(CHUNK_ID);
+    }
+
+    /**
+     * Adds a chunk to its group.
+     *
+     * @return the group if the chunk completed it, otherwise {@code null}
+     * @throws IllegalStateException if the chunk starts a new group while the reassembly cap is reached
+     * @throws IllegalArgumentException if the chunk is invalid, e.g. lies outside of its record, claims more chunks
+     * than its record can be split into or is larger than the reassembly cap
+     */
+    Group add(SAPEnterpriseMessagingAcknowledger acknowledger, BytesMessage message) throws JMSException {
+        String id = message.getStringProperty(CHUNK_ID);
+        int index = message.getIntProperty(CHUNK_INDEX);
+        int count = message.getIntProperty(CHUNK_COUNT);
+        int offset = message.getIntProperty(CHUNK_OFFSET);
+        int size = message.getIntProperty(CHUNK_TOTAL_SIZE);
+        int length = (int) message.getBodyLength();
+        if(index < 0 || index >= count || offset < 0 || (long) offset + length > size) {
+            throw new IllegalArgumentException("chunk " + index + " of " + count + " at offset " + offset
+                    + " with length " + length + " is outside of record size " + size);
+        }
+        if(count > size || length > 0 && count > (size + (long) length - 1) / length) {
+            throw new IllegalArgumentException("chunk count " + count + " is too large for record size " + size
+                    + " and chunk length " + length);
+        }
+        if(size > maxBytes) {
+            throw new IllegalArgumentException("record size " + size + " exceeds the reassembly cap " + maxBytes);
+        }
+
+        byte[] chunk = scratch.get();
+        if(chunk.length < length) {
+            chunk = new byte[length];
+            if(length <= SAPEnterpriseMessagingBodyCodec.MAX_RETAINED_SCRATCH) {
+                scratch.set(chunk);
+            }
+        }
+        message.readBytes(chunk, length);
+
+        Group group;
+        Group replaced = null;
+        boolean complete;
+        synchronized(this) {
+            group = groups.get(id);
+            if(group != null && (count != group.count || size != group.body.length)) {
+                if(bytes - group.body.length + size > maxBytes) {
+                    throw new IllegalStateException("reassembly store is full");
+                }
+                groups.remove(id);
+                bytes -= group.body.length;
+                replaced = group;
+                group = null;
+            }
+            if(group == null) {
+                if(bytes + size > maxBytes) {
+                    throw new IllegalStateException("reassembly store is full");
+                }
+                group = new Group(id, count, size);
+                groups.put(id, group);
+                bytes += size;
+                startExpirer();
+            }
+            group.chunks.add(new Chunk(acknowledger, message));
+            acknowledger.assembling();
+            if(!group.received.get(index)) {
+                group.received.set(index);
+                System.arraycopy(chunk, 0, group.body, offset, length);
+            }
+            complete = group.received.cardinality() == group.count;
+            if(complete) {
+                groups.remove(id);
+                bytes -= group.body.length;
+            }
+        }
+        if(replaced != null) {
+            log.warn("chunked record {} replaced after receiving {} of {} chunks, dropping them", id,
+                    replaced.received.cardinality(), replaced.count);
+            replaced.drop();
+        }
+        if(!complete) {
+            return null;
+        }
+        for(Chunk completed : group.chunks) {
+            completed.acknowledger.assembled();
+        }
+        return group;
+    }
+
+    /**
+     * Drops the groups being reassembled, e.g. because the sessions their chunks were received on are closed.
+     */
+    synchronized void clear() {
+        for(Group group : groups.values()) {
+            for(Chunk chunk : group.chunks) {
+                chunk.acknowledger.assembled();
+            }
+        }
+        groups.clear();
+        bytes = 0;
+        if(expirer != null) {
+            expirer.shutdownNow();
+            expirer = null;
+        }
+    }
+
+    synchronized long bytes() {
+        return bytes;
+    }
+
+    private void startExpirer() {
+        if(expirer != null) {
+            return;
+        }
+        expirer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "sap-em-reassembler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(timeout / 4, 10);
+        expirer.scheduleAtFixedRate(this::expire, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    private void expire() {
+        List<Group> expired = new ArrayList<>();
+        synchronized(this) {
+            long now = System.currentTimeMillis();
+            Iterator<Group> iterator = groups.values().iterator();
+            while(iterator.hasNext()) {
+                Group group = iterator.next();
+                if(now - group.created >= timeout) {
+                    iterator.remove();
+                    bytes -= group.body.length;
+                    expired.add(group);
+                }
+            }
+        }
+        for(Group group : expired) {
+            log.warn("chunked record {} expired after receiving {} of {} chunks, dropping them", group.id,
+                    group.received.cardinality(), group.count);
+            metrics.failed.increment();
+            group.drop();
+        }
+    }
+
+    static class Group {
+
+        final byte[] body;
+        final List<Chunk> chunks = new ArrayList<>();
+        private final String id;
+        private final int count;
+        private final BitSet received;
+        private final long created = System.currentTimeMillis();
+
+        Group(String id, int count, int size) {
+            this.id = id;
+            this.count = count;
+            this.body = new byte[size];
+            this.received = new BitSet(count);
+        }
+
+        /**
+         * @return the last chunk received, carrying the properties of the record
+         */
+        Message message() {
+            return chunks.get(chunks.size() - 1).message;
+        }
+
+        void ack() {
+            for(Chunk chunk : chunks) {
+                chunk.acknowledger.ack(chunk.message);
+            }
+        }
+
+        void fail() {
+            for(Chunk chunk : chunks) {
+                chunk.acknowledger.fail(chunk.message);
+            }
+        }
+
+        void reject() {
+            for(Chunk chunk : chunks) {
+                chunk.acknowledger.reject(chunk.message);
+            }
+        }
+
+        /**
+         * Settles the chunks of a group that will never be complete and releases them from their acknowledgers.
+         */
+        private void drop() {
+            for(Chunk chunk : chunks) {
+                chunk.acknowledger.drop(chunk.message);
+                chunk.acknowledger.assembled();
+            }
+        }
+    }
+
+    static class Chunk {
+
+        final SAPEnterpriseMessagingAcknowledger acknowledger;
+        final Message message;
+
+        Chunk(SAPEnterpriseMessagingAcknowledger acknowledger, Message message) {
+            this.acknowledger = acknowledger;
+            this.message = message;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.richemont.digital.pulsar;
+
+/*-
+ * #%L
+ * pulsar-sap-em-connector
+ * %%
+ * Copyright (C) 2020 Richemont SA
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import org.apache.pulsar.functions.api.Record;
+import org.slf4j.Logger;
+
+import javax.jms.ExceptionListener;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import java.util.List;
+
+/**
+ * Receives messages from a single session's consumers, decodes them and hands the records off to the source; each
+ * receiver runs on its own thread so that the session is only ever used for receiving by that thread and decoding
+ * happens ahead of Pulsar asking for the next record. The receiver stops when it fails to receive or acknowledge
+ * messages, reporting the failure so that the session can be rebuilt.
+ * <p>
+ * A session consuming from several destinations has one consumer per destination, polled in turn starting after the
+ * one that last delivered a message so that a busy destination cannot starve the others.
+ * <p>
+ * With a rate limit, shared by the receivers of the source, each record waits for it before being handed off; the
+ * messages received meanwhile stay prefetched by the consumer.
+ * <p>
+ * With a decoder pool the receiver only registers the messages with the acknowledger and dispatches them to the pool,
+ * which decodes and hands off the records.
+ */
+class SAPEnterpriseMessagingReceiver implements Runnable {
+
+    static final long RECEIVE_TIMEOUT = 100;
+    static final long IDLE_TIMEOUT = 10;
+
+    private final List<MessageConsumer> consumers;
+    private final SAPEnterpriseMessagingAcknowledger acknowledger;
+    private final Decoder decoder;
+    private final SAPEnterpriseMessagingBuffer<Record<byte[]>> buffer;
+    private final SAPEnterpriseMessagingRateLimiter limiter;
+    private final SAPEnterpriseMessagingDecoderPool pool;
+    private final ExceptionListener failureListener;
+    private final Logger log;
+
+    private volatile boolean running = true;
+    private int next;
+
+    SAPEnterpriseMessagingReceiver(List<MessageConsumer> consumers, SAPEnterpriseMessagingAcknowledger acknowledger,
+                                   Decoder decoder, SAPEnterpriseMessagingBuffer<Record<byte[]>> buffer,
+                                   SAPEnterpriseMessagingRateLimiter limiter, SAPEnterpriseMessagingDecoderPool pool,
+                                   ExceptionListener failureListener, Logger log) {
+        this.consumers = consumers;
+        this.acknowledger = acknowledger;
+        this.decoder = decoder;
+        this.buffer = buffer;
+        this.limiter = limiter;
+        this.pool = pool;
+        this.failureListener = failureListener;
+        this.log = log;
+    }
+
+    // -- Runnable
+
+    @Override
+    public void run() {
+        try {
+            while(running) {
+                if(!acknowledger.settle(RECEIVE_TIMEOUT)) {
+                    continue;
+                }
+                Message message = receive();
+                if(message != null) {
+                    acknowledger.delivered(message);
+                    if(pool != null) {
+                        pool.dispatch(acknowledger, message);
+                        continue;
+                    }
+                    Record<byte[]> record = decoder.decode(acknowledger, message);
+                    if(record != null) {
+                        if(limiter != null) {
+                            limiter.acquire(record.getValue().length);
+                        }
+                        buffer.put(record);
+                    }
+                }
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch(JMSException e) {
+            if(running) {
+                log.error("failed to receive or acknowledge message from SAP Enterprise Messaging: {}", e.getMessage());
+                failureListener.onException(e);
+            }
+        } catch(Exception e) {
+            log.error("failed to decode message from SAP Enterprise Messaging: {}", e.getMessage());
+            buffer.fail(e);
+        }
+        decoder.stopped();
+        log.debug("receiver stopped");
+    }
+
+    // -- SAPEnterpriseMessagingReceiver
+
+    void stop() {
+        running = false;
+    }
+
+    private Message receive() throws JMSException {
+        int count = consumers.size();
+        if(count == 1) {
+            return consumers.get(0).receive(RECEIVE_TIMEOUT);
+        }
+        for(int i = 0; i < count; i++) {
+            MessageConsumer consumer = consumers.get(next);
+            next = (next + 1) % count;
+            Message message = consumer.receiveNoWait();
+            if(message != null) {
+                return message;
+            }
+        }
+        // nothing prefetched on any destination: wait briefly on each in turn
+        MessageConsumer consumer = consumers.get(next);
+        next = (next + 1) % count;
+        return consumer.receive(IDLE_TIMEOUT);
+    }
+
+    /**
+     * Decodes a message received on a session into a Pulsar record settled by the session's acknowledger, or returns
+     * {@code null} if the message is a chunk that does not complete its record.
+     */
+    interface Decoder {
+        Record<byte[]> decode(SAPEnterpriseMessagingAcknowledger acknowledger, Message message) throws Exception;
+
+        /**
+         * Releases the resources held for the calling thread, which stops decoding.
+         */
+        default void stopped() {
+        }
+    }
+}
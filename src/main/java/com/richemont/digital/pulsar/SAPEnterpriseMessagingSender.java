@@ -0,0 +1,531 @@
+package com.richemont.digital.pulsar;
+
+/*-
+ * #%L
+ * pulsar-sap-em-connector
+ * %%
+ * Copyright (C) 2020 Richemont SA
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import org.apache.pulsar.functions.api.Record;
+import org.slf4j.Logger;
+
+import javax.jms.BytesMessage;
+import javax.jms.CompletionListener;
+import javax.jms.ExceptionListener;
+import javax.jms.IllegalStateException;
+import javax.jms.InvalidDestinationException;
+import javax.jms.JMSException;
+import javax.jms.MapMessage;
+import javax.jms.Message;
+import javax.jms.MessageFormatException;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.richemont.digital.pulsar.SAPEnterpriseMessagingConnector.JMSX_GROUP_ID;
+
+/**
+ * Sends records on a single session and producer. Records are sent in order by a dedicated thread which is the only
+ * user of the session; the completion callbacks never touch it.
+ * <p>
+ * Records routed to another destination than the configured one are sent by producers created on demand and kept in
+ * a least recently used cache, so that a sink spreading records over a handful of destinations does not create a
+ * producer link per record.
+ * <p>
+ * When the batch size is larger than one the session is transacted: records are sent synchronously and committed
+ * together once the batch is full or has lingered long enough, after which they are all acked. If the batch cannot
+ * be sent or committed it is rolled back and all of its records are failed.
+ * <p>
+ * With a spill journal the records that fail are spilled to it instead, except for those replayed from it.
+ */
+class SAPEnterpriseMessagingSender implements AutoCloseable {
+
+    static final String BYTES = "bytes";
+    static final String TEXT = "text";
+    static final String MAP = "map";
+
+    private final Session session;
+    private final MessageProducer producer;
+    private final Map<String, MessageProducer> producers;
+    private final SAPEnterpriseMessagingWindow window;
+    private final SAPEnterpriseMessagingMetrics metrics;
+    private final SAPEnterpriseMessagingJournal journal;
+    private final ScheduledExecutorService executor;
+    private final ExceptionListener failureListener;
+    private final Logger log;
+
+    private final String messageType;
+    private final SAPEnterpriseMessagingBodyCodec codec = new SAPEnterpriseMessagingBodyCodec();
+    private final SAPEnterpriseMessagingCompressor compressor;
+    private final String compression;
+    private final boolean compressed;
+    private final int compressionThreshold;
+    private final int maxMessageSize;
+    private final boolean deduplication;
+
+    private final int batchSize;
+    private final long batchLinger;
+    private final List<Record<byte[]>> batch = new ArrayList<>();
+    private final long[] batchSendTimes;
+    private final String[] batchDestinations;
+    private long batches;
+
+    SAPEnterpriseMessagingSender(Session session, MessageProducer producer, SAPEnterpriseMessagingWindow window,
+                                 SAPEnterpriseMessagingConfig config, SAPEnterpriseMessagingMetrics metrics,
+                                 SAPEnterpriseMessagingJournal journal, String name,
+                                 ExceptionListener failureListener, Logger log) {
+        this.session = session;
+        this.producer = producer;
+        int maxProducers = config.getMaxRoutedProducers();
+        this.producers = new LinkedHashMap<String, MessageProducer>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, MessageProducer> eldest) {
+                if(size() <= maxProducers) {
+                    return false;
+                }
+                closeProducer(eldest.getKey(), eldest.getValue());
+                return true;
+            }
+        };
+        this.window = window;
+        this.metrics = metrics;
+        this.journal = journal;
+        this.failureListener = failureListener;
+        this.log = log;
+        this.messageType = config.getMessageType();
+        this.compression = config.getCompression();
+        this.compressed = !SAPEnterpriseMessagingCompressor.NONE.equals(compression);
+        this.compressor = compressed
+                ? new SAPEnterpriseMessagingCompressor(compression, config.getCompressionLevel())
+                : null;
+        this.compressionThreshold = config.getCompressionThreshold();
+        this.maxMessageSize = config.getMaxMessageSize();
+        this.deduplication = config.isDeduplication();
+        this.batchSize = config.getBatchSize();
+        this.batchSendTimes = new long[batchSize];
+        this.batchDestinations = new String[batchSize];
+        this.batchLinger = config.getBatchLingerMs();
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // -- AutoCloseable
+
+    @Override
+    public void close() throws InterruptedException {
+        if(executor.isShutdown()) {
+            return;
+        }
+        executor.execute(this::commit);
+        if(compressor != null) {
+            // after the sends still queued, on the thread compressing them
+            executor.execute(compressor::close);
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.SECONDS);
+    }
+
+    // -- SAPEnterpriseMessagingSender
+
+    /**
+     * Queues the record for sending; the room it takes in the window is released when the send completes.
+     *
+     * @param destination the JMS name of the destination the record is routed to, or {@code null} for the configured
+     *                    destination
+     */
+    void send(Record<byte[]> record, String destination) {
+        try {
+            executor.execute(() -> doSend(record, destination));
+        } catch(RejectedExecutionException e) {
+            window.release(record.getValue().length);
+            metrics.failed.increment();
+            record.fail();
+            log.warn("failed to publish the message to SAP Enterprise Messaging: sink is closed");
+        }
+    }
+
+    private void doSend(final Record<byte[]> record, String destination) {
+        if(batchSize > 1) {
+            sendBatched(record, destination);
+            return;
+        }
+        Completion completion = new Completion(record, destination);
+        MessageProducer target;
+        List<Message> messages;
+        try {
+            messages = createMessages(record);
+            target = getProducer(destination);
+        } catch(MessageFormatException | IllegalArgumentException e) {
+            reject(record, e);
+            return;
+        } catch(JMSException e) {
+            log.warn("failed to publish the message to SAP Enterprise Messaging: {}", e.getMessage());
+            completion.abort(1);
+            sessionFailed(e);
+            return;
+        }
+        completion.expect(messages.size());
+        for(int i = 0; i < messages.size(); i++) {
+            try {
+                target.send(messages.get(i), completion);
+            } catch(JMSException e) {
+                log.warn("failed to publish the message to SAP Enterprise Messaging: {}", e.getMessage());
+                completion.abort(messages.size() - i);
+                sessionFailed(e);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Sends the messages of the record in the current transaction; the record only joins the batch once its messages
+     * are created, so that a record that cannot be converted is rejected on its own.
+     */
+    private void sendBatched(Record<byte[]> record, String destination) {
+        List<Message> messages;
+        try {
+            messages = createMessages(record);
+        } catch(MessageFormatException | IllegalArgumentException e) {
+            reject(record, e);
+            return;
+        } catch(JMSException e) {
+            log.warn("failed to publish the message to SAP Enterprise Messaging: {}", e.getMessage());
+            window.release(record.getValue().length);
+            fail(record, destination);
+            rollback();
+            sessionFailed(e);
+            return;
+        }
+        batchSendTimes[batch.size()] = System.nanoTime();
+        batchDestinations[batch.size()] = destination;
+        batch.add(record);
+        try {
+            MessageProducer target = getProducer(destination);
+            for(Message message : messages) {
+                target.send(message);
+            }
+        } catch(JMSException e) {
+            log.warn("failed to publish the message to SAP Enterprise Messaging: {}", e.getMessage());
+            rollback();
+            sessionFailed(e);
+            return;
+        }
+        if(batch.size() >= batchSize) {
+            commit();
+        } else if(batch.size() == 1) {
+            long current = batches;
+            executor.schedule(() -> {
+                if(batches == current) {
+                    commit();
+                }
+            }, batchLinger, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private MessageProducer getProducer(String destination) throws JMSException {
+        if(destination == null) {
+            if(producer == null) {
+                throw new InvalidDestinationException("record has no route and no destination is configured");
+            }
+            return producer;
+        }
+        MessageProducer routed = producers.get(destination);
+        if(routed == null) {
+            routed = session.createProducer(SAPEnterpriseMessagingConnector.createJMSDestination(session, destination));
+            producers.put(destination, routed);
+            log.debug("created producer for {}", destination);
+        }
+        return routed;
+    }
+
+    private void closeProducer(String destination, MessageProducer routed) {
+        try {
+            routed.close();
+            log.debug("closed producer for {}", destination);
+        } catch(JMSException e) {
+            log.warn("failed to close the producer for {}: {}", destination, e.getMessage());
+        }
+    }
+
+    private void commit() {
+        if(batch.isEmpty()) {
+            return;
+        }
+        try {
+            session.commit();
+        } catch(JMSException e) {
+            log.warn("failed to commit {} messages to SAP Enterprise Messaging: {}", batch.size(), e.getMessage());
+            rollback();
+            sessionFailed(e);
+            return;
+        }
+        complete(true);
+    }
+
+    private void rollback() {
+        metrics.rollbacks.increment();
+        try {
+            session.rollback();
+        } catch(JMSException e) {
+            log.warn("failed to roll back {} messages: {}", batch.size(), e.getMessage());
+        }
+        complete(false);
+    }
+
+    private void complete(boolean committed) {
+        long now = System.nanoTime();
+        for(int i = 0; i < batch.size(); i++) {
+            Record<byte[]> record = batch.get(i);
+            if(committed) {
+                window.completed(record.getValue().length, now - batchSendTimes[i]);
+                completed(record.getValue().length, batchSendTimes[i]);
+                record.ack();
+            } else {
+                window.failed(record.getValue().length, now - batchSendTimes[i]);
+                fail(record, batchDestinations[i]);
+            }
+        }
+        batch.clear();
+        Arrays.fill(batchDestinations, null);
+        batches++;
+    }
+
+    private void fail(Record<byte[]> record, String destination) {
+        if(journal != null && journal.spill(record, destination)) {
+            return;
+        }
+        metrics.failed.increment();
+        record.fail();
+    }
+
+    /**
+     * Fails a record that can never be converted to messages, e.g. a value that is not a JSON object with the map
+     * message type, on its own and without spilling it, leaving it to the redelivery and dead letter policy of the
+     * sink subscription. A spilled record is dropped instead, as Pulsar already acked it.
+     */
+    private void reject(Record<byte[]> record, Exception exception) {
+        window.release(record.getValue().length);
+        metrics.failed.increment();
+        log.warn("rejected a record that cannot be converted to a message: {}", exception.getMessage());
+        if(record instanceof SAPEnterpriseMessagingJournal.Entry) {
+            record.ack();
+        } else {
+            record.fail();
+        }
+    }
+
+    /**
+     * Reports the failure if the session or connection is no longer usable so that it gets rebuilt.
+     */
+    private void sessionFailed(JMSException exception) {
+        if(exception instanceof IllegalStateException) {
+            failureListener.onException(exception);
+        }
+    }
+
+    private void completed(int size, long start) {
+        metrics.sendLatency.record(System.nanoTime() - start);
+        metrics.sent.increment();
+        metrics.sentBytes.add(size);
+    }
+
+    /**
+     * Creates the messages of the record: a bytes message, a text message with the UTF-8 text of the value, or a map
+     * message with the fields of the JSON object value, depending on the configured message type.
+     * <p>
+     * The body of a bytes message is compressed if compression is configured, the value is at least as large as the
+     * threshold and compressing it saves space. A body larger than the maximum message size is split into chunks,
+     * each sent as a bytes message carrying the record properties and the chunk properties the source reassembles
+     * the body from. The chunks are identified by the partition and sequence id of the record, so that the chunks of
+     * a retried record join those of the earlier attempt, or by a random id if the record has no sequence id.
+     */
+    List<Message> createMessages(Record<byte[]> record) throws JMSException {
+        if(TEXT.equals(messageType)) {
+            return Collections.singletonList(withProperties(
+                    session.createTextMessage(new String(record.getValue(), StandardCharsets.UTF_8)), record));
+        }
+        if(MAP.equals(messageType)) {
+            MapMessage map = session.createMapMessage();
+            try {
+                codec.decode(record.getValue(), map);
+            } catch(IOException e) {
+                MessageFormatException exception = new MessageFormatException("record value is not a JSON object");
+                exception.initCause(e);
+                throw exception;
+            }
+            return Collections.singletonList(withProperties(map, record));
+        }
+
+        byte[] value = record.getValue();
+        byte[] body = value;
+        int length = value.length;
+        int uncompressedSize = -1;
+        if(compressed && value.length >= compressionThreshold) {
+            int compressedLength = compressor.compress(value);
+            if(compressedLength < value.length) {
+                body = compressor.compressed();
+                length = compressedLength;
+                uncompressedSize = value.length;
+            }
+        }
+        if(maxMessageSize <= 0 || length <= maxMessageSize) {
+            return Collections.singletonList(createBytesMessage(record, body, 0, length, uncompressedSize));
+        }
+
+        String id = SAPEnterpriseMessagingDeduplicator.getSequenceId(record);
+        if(id == null) {
+            id = UUID.randomUUID().toString();
+        }
+        int count = (length + maxMessageSize - 1) / maxMessageSize;
+        List<Message> chunks = new ArrayList<>(count);
+        for(int i = 0; i < count; i++) {
+            int offset = i * maxMessageSize;
+            BytesMessage chunk = createBytesMessage(record, body, offset, Math.min(maxMessageSize, length - offset),
+                    uncompressedSize);
+            chunk.setStringProperty(SAPEnterpriseMessagingReassembler.CHUNK_ID, id);
+            chunk.setIntProperty(SAPEnterpriseMessagingReassembler.CHUNK_INDEX, i);
+            chunk.setIntProperty(SAPEnterpriseMessagingReassembler.CHUNK_COUNT, count);
+            chunk.setIntProperty(SAPEnterpriseMessagingReassembler.CHUNK_OFFSET, offset);
+            chunk.setIntProperty(SAPEnterpriseMessagingReassembler.CHUNK_TOTAL_SIZE, length);
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+
+    /**
+     * @param size the uncompressed size of a compressed body, or -1 if the body is not compressed
+     */
+    private BytesMessage createBytesMessage(Record<byte[]> record, byte[] body, int offset, int length, int size)
+            throws JMSException {
+        BytesMessage message = session.createBytesMessage();
+        message.writeBytes(body, offset, length);
+        if(size >= 0) {
+            message.setStringProperty(SAPEnterpriseMessagingCompressor.COMPRESSION_PROPERTY, compression);
+            message.setIntProperty(SAPEnterpriseMessagingCompressor.UNCOMPRESSED_SIZE_PROPERTY, size);
+        }
+        return withProperties(message, record);
+    }
+
+    private <M extends Message> M withProperties(M message, Record<byte[]> record) throws JMSException {
+        Optional<String> key = record.getKey();
+        if(key.isPresent()) {
+            message.setStringProperty(JMSX_GROUP_ID, key.get());
+        }
+        if(deduplication) {
+            String sequenceId = SAPEnterpriseMessagingDeduplicator.getSequenceId(record);
+            if(sequenceId != null) {
+                message.setStringProperty(SAPEnterpriseMessagingDeduplicator.SEQUENCE_ID_PROPERTY, sequenceId);
+            }
+        }
+        for(Map.Entry<String, String> entry : record.getProperties().entrySet()) {
+            message.setStringProperty(entry.getKey(), entry.getValue());
+        }
+        return message;
+    }
+
+    /**
+     * Completes a record once the broker has completed all of its messages, acking it or failing it if any of them
+     * failed. Only failures reported by the broker count against the adaptive window, not messages left unsent.
+     */
+    private class Completion implements CompletionListener {
+
+        private final Record<byte[]> record;
+        private final String destination;
+        private final long start = System.nanoTime();
+        private final AtomicInteger pending = new AtomicInteger();
+        private volatile boolean failed;
+        private volatile boolean rejected;
+
+        Completion(Record<byte[]> record, String destination) {
+            this.record = record;
+            this.destination = destination;
+        }
+
+        @Override
+        public void onCompletion(Message message) {
+            if(pending.decrementAndGet() == 0) {
+                complete();
+            }
+        }
+
+        @Override
+        public void onException(Message message, Exception exception) {
+            rejected = true;
+            failed = true;
+            if(pending.decrementAndGet() == 0) {
+                complete();
+            }
+        }
+
+        /**
+         * Sets the number of messages sent for the record, before sending them.
+         */
+        void expect(int messages) {
+            pending.set(messages);
+        }
+
+        /**
+         * Fails the record for messages that could not be sent.
+         */
+        void abort(int unsent) {
+            failed = true;
+            if(pending.addAndGet(-unsent) <= 0) {
+                complete();
+            }
+        }
+
+        private void complete() {
+            int size = record.getValue().length;
+            long latency = System.nanoTime() - start;
+            if(failed) {
+                if(rejected) {
+                    window.failed(size, latency);
+                } else {
+                    window.release(size);
+                }
+                fail(record, destination);
+            } else {
+                window.completed(size, latency);
+                completed(size, start);
+                record.ack();
+            }
+        }
+    }
+}
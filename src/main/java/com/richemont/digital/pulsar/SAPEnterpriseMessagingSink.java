@@ -1,17 +1,19 @@
 package com.richemont.digital.pulsar;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
-import javax.jms.BytesMessage;
-import javax.jms.CompletionListener;
 import javax.jms.Destination;
 import javax.jms.JMSException;
-import javax.jms.Message;
 import javax.jms.MessageProducer;
 import javax.jms.Session;
 
+import org.apache.pulsar.client.api.Message;
 import org.apache.pulsar.functions.api.Record;
 import org.apache.pulsar.io.core.Sink;
 import org.apache.pulsar.io.core.SinkContext;
@@ -58,60 +60,384 @@ import com.rabbitmq.client.Connection;
 )
 public class SAPEnterpriseMessagingSink extends SAPEnterpriseMessagingConnector implements Sink<byte[]> {
 
+    static final String NONE = "none";
+    static final String TOPIC = "topic";
+    static final String PROPERTY = "property";
+
+    private static final String PARTITION_SUFFIX = "-partition-";
+    private static final long DRAIN_TIMEOUT = 100;
+
     private Connection rabbitMQConnection;
     private Channel rabbitMQChannel;
     private SAPEnterpriseMessagingConfig config;
     private String exchangeName;
     private String defaultRoutingKey;
 
-    private MessageProducer producer;
-    private Session session;
+    private final Object lock = new Object();
+    private final List<SAPEnterpriseMessagingSender> connecting = new ArrayList<>();
+    private List<SAPEnterpriseMessagingSender> senders = Collections.emptyList();
+    private SAPEnterpriseMessagingWindow window;
+    private SAPEnterpriseMessagingDeduplicator deduplicator;
+    private SAPEnterpriseMessagingRateLimiter limiter;
+    private SAPEnterpriseMessagingJournal journal;
+    private SAPEnterpriseMessagingRateLimiter drainLimiter;
+    private Thread drainer;
+    private volatile boolean draining;
+    private int next;
+
+    // last route resolved by write, records of a topic mostly share the same one
+    private String lastRoute;
+    private String lastDestination;
 
     // -- Sink
 
     @Override
     public void open(Map<String, Object> configMap, SinkContext context) throws Exception {
-        open(configMap, context.getLogger());
+        configure(configMap, context.getLogger(), SAPEnterpriseMessagingMetrics.SINK,
+                context.getTenant() + "/" + context.getNamespace() + "/" + context.getSinkName(),
+                context.getInstanceId(), context::recordMetric);
+        window = new SAPEnterpriseMessagingWindow(getConfig().getMaxInflightMessages(), getConfig().getMaxInflightBytes(),
+                getConfig().isAdaptiveWindow(), getConfig().getAdaptiveLatencyMs());
+        getMetrics().gauge("sap_em_inflight_messages", "Messages sent but not yet completed.", window::messages);
+        getMetrics().gauge("sap_em_inflight_bytes", "Body bytes of the messages sent but not yet completed.", window::bytes);
+        getMetrics().gauge("sap_em_inflight_limit", "Current limit of the messages sent but not yet completed.", window::limit);
+        if(getConfig().getMaxMessagesPerSecond() > 0 || getConfig().getMaxBytesPerSecond() > 0) {
+            limiter = new SAPEnterpriseMessagingRateLimiter(getConfig().getMaxMessagesPerSecond(),
+                    getConfig().getMaxBytesPerSecond(), getMetrics());
+        }
+        if(getConfig().isDeduplication()) {
+            deduplicator = new SAPEnterpriseMessagingDeduplicator(getConfig().getDeduplicationSize(),
+                    getConfig().getDeduplicationWindowMs());
+            getMetrics().gauge("sap_em_deduplication_ids", "Ids remembered for deduplication.", deduplicator::size);
+        }
+        if(getConfig().getSpillDirectory() != null) {
+            String name = getConfig().getConnectionName() + "-" + context.getInstanceId();
+            journal = new SAPEnterpriseMessagingJournal(new File(getConfig().getSpillDirectory(), name),
+                    getConfig().getSpillSegmentBytes(), getConfig().getMaxSpillBytes(), getMetrics(), log);
+            getMetrics().gauge("sap_em_spilled_records", "Spilled records not replayed yet.", journal::size);
+            getMetrics().gauge("sap_em_spill_bytes", "Size of the spill journal segment files.", journal::bytes);
+            if(getConfig().getSpillDrainMessagesPerSecond() > 0) {
+                drainLimiter = new SAPEnterpriseMessagingRateLimiter(getConfig().getSpillDrainMessagesPerSecond(), 0,
+                        getMetrics());
+            }
+            draining = true;
+            drainer = new Thread(this::drain, "sap-em-drainer-" + name);
+            drainer.setDaemon(true);
+            drainer.start();
+        }
+        open();
     }
 
+    /**
+     * Sends the record asynchronously, acking or failing it when the broker completes the send. Records with the same
+     * key are always sent by the same session so that their order is preserved; records without a key are spread over
+     * the sessions round robin. While the connection is being rebuilt the record waits for the new sessions.
+     * <p>
+     * Before that the record waits for the rate limit, if any, and for room in the in-flight window, blocking Pulsar
+     * so that the sink never sends faster than the broker completes.
+     * <p>
+     * With routing the record is sent to the destination named after its topic or routing property instead, each
+     * session creating the producer on first use.
+     * <p>
+     * With deduplication a record whose topic partition and sequence id were already sent is acked without sending it
+     * again; the id of a record is remembered once its send completes.
+     * <p>
+     * With a spill journal a record is spilled instead of failed when the sink is not connected, without waiting for
+     * the sessions, or the in-flight window stays full for the in-flight timeout. While spilled records are left all
+     * records are spilled behind them, so that they are sent in order.
+     */
     @Override
-    public void write(final Record<byte[]> record) {
-        byte[] value = record.getValue();
+    public void write(Record<byte[]> record) {
+        if(deduplicator != null) {
+            String sequenceId = SAPEnterpriseMessagingDeduplicator.getSequenceId(record);
+            if(sequenceId != null) {
+                long id = SAPEnterpriseMessagingDeduplicator.hash(sequenceId);
+                if(deduplicator.contains(id)) {
+                    log.debug("dropped duplicate record {}", sequenceId);
+                    getMetrics().duplicates.increment();
+                    record.ack();
+                    return;
+                }
+                record = new DeduplicatedRecord(record, deduplicator, id);
+            }
+        }
+        String destination = getDestination(record);
+        if(journal != null && !journal.isEmpty()) {
+            spill(record, destination, "spill journal is full");
+            return;
+        }
+        int size = record.getValue().length;
+        SAPEnterpriseMessagingSender sender;
+        boolean acquired = false;
         try {
-            BytesMessage message = session.createBytesMessage();
-            Optional<String> key = record.getKey();
-            if(key.isPresent()) {
-                message.setStringProperty(JMSX_GROUP_ID, key.get());
+            if(limiter != null) {
+                limiter.acquire(size);
             }
-            message.writeBytes(value);
-
-            Set<Map.Entry<String, String>> entries = record.getProperties().entrySet();
-            for(Map.Entry<String, String> entry : entries) {
-                message.setStringProperty(entry.getKey(), entry.getValue());
+            if(!window.acquire(size, getConfig().getInflightTimeoutMs())) {
+                spill(record, destination, "too many messages in flight");
+                return;
             }
-
-            producer.send(message, new CompletionListener() {
-                @Override
-                public void onCompletion(Message message) {
-                    record.ack();
-                }
-                @Override
-                public void onException(Message message, Exception exception) {
-                    record.fail();
-                }
-            });
-        } catch(JMSException e) {
+            acquired = true;
+            sender = getSender(record, journal != null ? 0 : getConfig().getInflightTimeoutMs());
+        } catch(InterruptedException e) {
+            if(acquired) {
+                window.release(size);
+            }
+            Thread.currentThread().interrupt();
+            getMetrics().failed.increment();
             record.fail();
-            log.warn("failed to publish the message to SAP Enterprise Messaging: {}", e.getMessage());
+            return;
+        }
+        if(sender == null) {
+            window.release(size);
+            spill(record, destination, "not connected");
+            return;
         }
+        sender.send(record, destination);
     }
 
     // -- SAPEnterpriseMessagingConnector
 
     @Override
-    void connect(Session session, Destination destination) throws JMSException {
-        this.session = session;
-        producer = session.createProducer(destination);
+    void connect(Session session, List<Destination> destinations) throws JMSException {
+        String name = "sap-em-sender-" + getConfig().getConnectionName() + "-" + connecting.size();
+        MessageProducer producer = destinations.isEmpty() ? null : session.createProducer(destinations.get(0));
+        connecting.add(new SAPEnterpriseMessagingSender(session, producer, window, getConfig(),
+                getMetrics(), journal, name, e -> sessionFailed(session, e), log));
+    }
+
+    @Override
+    void connected() {
+        synchronized(lock) {
+            senders = new ArrayList<>(connecting);
+            lock.notifyAll();
+        }
+        connecting.clear();
+    }
+
+    @Override
+    void disconnect() throws Exception {
+        List<SAPEnterpriseMessagingSender> closing = new ArrayList<>(connecting);
+        synchronized(lock) {
+            closing.addAll(senders);
+            senders = Collections.emptyList();
+        }
+        connecting.clear();
+        for(SAPEnterpriseMessagingSender sender : closing) {
+            sender.close();
+        }
+    }
+
+    @Override
+    void closed() throws Exception {
+        if(journal == null) {
+            return;
+        }
+        draining = false;
+        drainer.interrupt();
+        drainer.join(TimeUnit.SECONDS.toMillis(1));
+        journal.close();
+    }
+
+    @Override
+    int getSessionCount() {
+        return getConfig().getProducerSessions();
     }
 
+    @Override
+    boolean isTransacted() {
+        return getConfig().getBatchSize() > 1;
+    }
+
+    // -- SAPEnterpriseMessagingSink
+
+    /**
+     * @return the JMS name of the destination the record is routed to, or {@code null} for the configured destination
+     */
+    private String getDestination(Record<byte[]> record) {
+        String route;
+        switch(getConfig().getRouting()) {
+            case TOPIC:
+                route = record.getTopicName().map(SAPEnterpriseMessagingSink::getLocalName).orElse(null);
+                break;
+            case PROPERTY:
+                route = record.getProperties().get(getConfig().getRoutingProperty());
+                break;
+            default:
+                return null;
+        }
+        if(route == null || route.isEmpty()) {
+            return null;
+        }
+        if(!route.equals(lastRoute)) {
+            lastDestination = SAPEnterpriseMessagingConfig.toJMSDestination(getConfig().getRoutingPrefix() + route);
+            lastRoute = route;
+        }
+        return lastDestination;
+    }
+
+    /**
+     * @return the local name of a Pulsar topic, without its partition suffix, e.g. 'orders' for
+     * 'persistent://public/default/orders-partition-0'
+     */
+    static String getLocalName(String topic) {
+        String name = topic.substring(topic.lastIndexOf('/') + 1);
+        int partition = name.lastIndexOf(PARTITION_SUFFIX);
+        if(partition > 0) {
+            String index = name.substring(partition + PARTITION_SUFFIX.length());
+            if(!index.isEmpty() && index.chars().allMatch(Character::isDigit)) {
+                return name.substring(0, partition);
+            }
+        }
+        return name;
+    }
+
+    /**
+     * Spills the record to the journal, or fails it if there is none or it is full.
+     */
+    private void spill(Record<byte[]> record, String destination, String reason) {
+        if(journal != null && journal.spill(record, destination)) {
+            return;
+        }
+        getMetrics().failed.increment();
+        record.fail();
+        log.warn("failed to publish the message to SAP Enterprise Messaging: {}", reason);
+    }
+
+    /**
+     * Replays the spilled records in order, within the rate limits and the in-flight window, until the sink is closed.
+     * A record that cannot be sent makes the journal replay the records from it once those in flight are settled.
+     */
+    private void drain() {
+        try {
+            while(draining) {
+                SAPEnterpriseMessagingJournal.Entry entry = journal.next(DRAIN_TIMEOUT);
+                if(entry == null) {
+                    continue;
+                }
+                int size = entry.getValue().length;
+                if(drainLimiter != null) {
+                    drainLimiter.acquire(size);
+                }
+                if(limiter != null) {
+                    limiter.acquire(size);
+                }
+                while(!window.acquire(size, DRAIN_TIMEOUT)) {
+                    if(!draining) {
+                        entry.fail();
+                        return;
+                    }
+                }
+                SAPEnterpriseMessagingSender sender = getSender(entry, DRAIN_TIMEOUT);
+                if(sender == null) {
+                    window.release(size);
+                    entry.fail();
+                    Thread.sleep(getConfig().getReconnectBackoffMs());
+                    continue;
+                }
+                sender.send(entry, entry.destination);
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.debug("drainer stopped");
+    }
+
+    /**
+     * @param timeout millis to wait for the sessions to be connected; 0 to return immediately and negative to wait
+     *                indefinitely
+     * @return the sender of the record or {@code null} if the sessions were not connected in time
+     */
+    private SAPEnterpriseMessagingSender getSender(Record<byte[]> record, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized(lock) {
+            while(senders.isEmpty()) {
+                long remaining = deadline - System.currentTimeMillis();
+                if(timeout < 0) {
+                    lock.wait();
+                } else if(remaining > 0) {
+                    lock.wait(remaining);
+                } else {
+                    return null;
+                }
+            }
+            Optional<String> key = record.getKey();
+            int index = key.isPresent()
+                    ? Math.floorMod(key.get().hashCode(), senders.size())
+                    : Math.floorMod(next++, senders.size());
+            return senders.get(index);
+        }
+    }
+
+    /**
+     * A record remembering its id for deduplication once acked.
+     */
+    private static class DeduplicatedRecord implements Record<byte[]> {
+
+        private final Record<byte[]> record;
+        private final SAPEnterpriseMessagingDeduplicator deduplicator;
+        private final long id;
+
+        DeduplicatedRecord(Record<byte[]> record, SAPEnterpriseMessagingDeduplicator deduplicator, long id) {
+            this.record = record;
+            this.deduplicator = deduplicator;
+            this.id = id;
+        }
+
+        @Override
+        public Optional<String> getTopicName() {
+            return record.getTopicName();
+        }
+
+        @Override
+        public Optional<String> getKey() {
+            return record.getKey();
+        }
+
+        @Override
+        public byte[] getValue() {
+            return record.getValue();
+        }
+
+        @Override
+        public Optional<Long> getEventTime() {
+            return record.getEventTime();
+        }
+
+        @Override
+        public Optional<String> getPartitionId() {
+            return record.getPartitionId();
+        }
+
+        @Override
+        public Optional<Long> getRecordSequence() {
+            return record.getRecordSequence();
+        }
+
+        @Override
+        public Map<String, String> getProperties() {
+            return record.getProperties();
+        }
+
+        @Override
+        public void ack() {
+            deduplicator.add(id);
+            record.ack();
+        }
+
+        @Override
+        public void fail() {
+            record.fail();
+        }
+
+        @Override
+        public Optional<String> getDestinationTopic() {
+            return record.getDestinationTopic();
+        }
+
+        @Override
+        public Optional<Message<byte[]>> getMessage() {
+            return record.getMessage();
+        }
+    }
 }
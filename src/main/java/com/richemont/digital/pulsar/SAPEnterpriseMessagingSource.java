@@ -1,14 +1,22 @@
 package com.richemont.digital.pulsar;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
 
 import javax.jms.BytesMessage;
 import javax.jms.Destination;
 import javax.jms.JMSException;
+import javax.jms.MapMessage;
 import javax.jms.Message;
 import javax.jms.MessageConsumer;
 import javax.jms.Session;
@@ -58,108 +66,410 @@ import org.slf4j.LoggerFactory;
     configClass = SAPEnterpriseMessagingConfig.class)
 public class SAPEnterpriseMessagingSource extends SAPEnterpriseMessagingConnector implements Source<byte[]> {
 
-    private Session session;
+    private final List<SAPEnterpriseMessagingReceiver> receivers = new ArrayList<>();
+    private SAPEnterpriseMessagingBuffer<Record<byte[]>> buffer;
+    private SAPEnterpriseMessagingReassembler reassembler;
+    private SAPEnterpriseMessagingDeduplicator deduplicator;
+    private SAPEnterpriseMessagingRateLimiter limiter;
+    private SAPEnterpriseMessagingFilter filter;
+    private ExecutorService executor;
+    private SAPEnterpriseMessagingDecoderPool pool;
+    private volatile int largestMessage;
+
+    private final ThreadLocal<SAPEnterpriseMessagingBodyCodec> codecs =
+            ThreadLocal.withInitial(SAPEnterpriseMessagingBodyCodec::new);
+    private final ThreadLocal<SAPEnterpriseMessagingCompressor> compressors =
+            ThreadLocal.withInitial(() -> new SAPEnterpriseMessagingCompressor(getConfig().getMaxDecompressedSize()));
+    private final SAPEnterpriseMessagingReceiver.Decoder decoder = new SAPEnterpriseMessagingReceiver.Decoder() {
+
+        @Override
+        public Record<byte[]> decode(SAPEnterpriseMessagingAcknowledger acknowledger, Message message)
+                throws Exception {
+            return createRecord(acknowledger, message);
+        }
+
+        /**
+         * Releases the native memory of the compressor of the thread, which is not reused once its session is closed.
+         */
+        @Override
+        public void stopped() {
+            compressors.get().close();
+            compressors.remove();
+            codecs.remove();
+        }
+    };
 
-    private MessageConsumer consumer;
     private Logger log = LoggerFactory.getLogger(SAPEnterpriseMessagingSource.class);
 
     // -- Source
 
     public void open(Map<String, Object> configMap, SourceContext context) throws Exception {
-        open(configMap, context.getLogger());
+        configure(configMap, context);
+        open();
     }
 
     @Override
     public Record<byte[]> read() throws Exception {
-        Message message = consumer.receive();
-        if(log.isTraceEnabled()) {
-            String id = message.getJMSMessageID();
-            log.trace("{} - JMSType: {}", id, message.getJMSType());
-            log.trace("{} - messageClass: {}", id, message.getClass());
-            log.trace("{} - correlationID: {}", id, message.getJMSCorrelationID());
-        }
-        return createRecord(session, message);
+        long start = System.nanoTime();
+        Record<byte[]> record = buffer.take();
+        getMetrics().receiveWait.record(System.nanoTime() - start);
+        return record;
     }
 
     // -- SAPEnterpriseMessagingConnector
 
     @Override
-    protected void connect(Session session, Destination destination) throws JMSException {
-        this.session = session;
-        consumer = session.createConsumer(destination);
-        log.debug("created consumer for {} session", getConfig());
+    protected void connect(Session session, List<Destination> destinations) throws JMSException {
+        if(executor == null) {
+            executor = Executors.newFixedThreadPool(getSessionCount(), runnable -> {
+                Thread thread = new Thread(runnable, "sap-em-receiver-" + getConfig().getConnectionName() + "-" + receivers.size());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        if(pool == null && getConfig().getDecodeThreads() > 0) {
+            int threads = getConfig().getDecodeThreads();
+            pool = new SAPEnterpriseMessagingDecoderPool(threads, Math.max(1, getConfig().getReceiveQueueSize() / threads),
+                    "sap-em-decoder-" + getConfig().getConnectionName(), decoder, buffer, limiter, log);
+        }
+        List<MessageConsumer> consumers = new ArrayList<>(destinations.size());
+        for(Destination destination : destinations) {
+            consumers.add(session.createConsumer(destination, getConfig().getMessageSelector()));
+        }
+        log.debug("created {} consumers for {} session", consumers.size(), getConfig());
+
+        SAPEnterpriseMessagingReceiver receiver = new SAPEnterpriseMessagingReceiver(consumers,
+                new SAPEnterpriseMessagingAcknowledger(session, getConfig(), getMetrics()), decoder, buffer,
+                limiter, pool, e -> sessionFailed(session, e), log);
+        receivers.add(receiver);
+        executor.execute(receiver);
+    }
+
+    /**
+     * Stops the receivers and the decoders and drops the records Pulsar has not read yet and the chunks being
+     * reassembled; their messages are redelivered by the broker once the sessions are closed.
+     */
+    @Override
+    void disconnect() throws Exception {
+        receivers.forEach(SAPEnterpriseMessagingReceiver::stop);
+        receivers.clear();
+        if(executor != null) {
+            executor.shutdown();
+            if(!executor.awaitTermination(SAPEnterpriseMessagingReceiver.RECEIVE_TIMEOUT * 10, TimeUnit.MILLISECONDS)) {
+                executor.shutdownNow();
+                // the interrupted receivers stop before the buffer is cleared, so that none reserves room after it
+                executor.awaitTermination(SAPEnterpriseMessagingReceiver.RECEIVE_TIMEOUT * 10, TimeUnit.MILLISECONDS);
+            }
+            executor = null;
+        }
+        if(pool != null) {
+            pool.close();
+            pool = null;
+        }
+        buffer.clear();
+        reassembler.clear();
+    }
+
+    @Override
+    int getSessionCount() {
+        return getConfig().getConsumerSessions();
+    }
+
+    /**
+     * Splits the receive queue limits between the consumers, so that the messages prefetched by the client take no
+     * more than the records buffered for Pulsar. The byte limit is converted using the largest message received so
+     * far, or before any is received the average size implied by both limits.
+     */
+    @Override
+    int getPrefetch() {
+        SAPEnterpriseMessagingConfig config = getConfig();
+        int consumers = config.getConsumerSessions() * config.getJMSDestinations().size();
+        long messageBytes = Math.max(largestMessage, config.getReceiveQueueBytes() / config.getReceiveQueueSize());
+        long messages = Math.min(config.getReceiveQueueSize(), config.getReceiveQueueBytes() / Math.max(1, messageBytes));
+        return (int) Math.max(1, messages / consumers);
+    }
+
+    @Override
+    boolean isTransacted() {
+        return SAPEnterpriseMessagingAcknowledger.TRANSACTED.equals(getConfig().getAckMode());
+    }
+
+    @Override
+    int getAcknowledgeMode() {
+        return SAPEnterpriseMessagingAcknowledger.INDIVIDUAL.equals(getConfig().getAckMode())
+                ? SAPEnterpriseMessagingAcknowledger.INDIVIDUAL_ACKNOWLEDGE
+                : Session.CLIENT_ACKNOWLEDGE;
     }
 
     // -- SAPEnterpriseMessagingSource
 
-    private SAPEnterpriseMessagingRecord createRecord(Session session, Message message) throws Exception {
+    void configure(Map<String, Object> configMap, SourceContext context) throws IOException {
+        configure(configMap, context.getLogger(), SAPEnterpriseMessagingMetrics.SOURCE,
+                context.getTenant() + "/" + context.getNamespace() + "/" + context.getSourceName(),
+                context.getInstanceId(), context::recordMetric);
+        buffer = new SAPEnterpriseMessagingBuffer<>(getConfig().getReceiveQueueSize(),
+                getConfig().getReceiveQueueBytes(), record -> record.getValue().length);
+        getMetrics().gauge("sap_em_buffered_messages", "Received records waiting to be read by Pulsar.", buffer::size);
+        getMetrics().gauge("sap_em_buffered_bytes", "Body bytes of the received records waiting to be read by Pulsar.", buffer::bytes);
+        reassembler = new SAPEnterpriseMessagingReassembler(getConfig().getMaxReassemblyBytes(),
+                getConfig().getReassemblyTimeoutMs(), getMetrics(), log);
+        getMetrics().gauge("sap_em_reassembly_bytes", "Body bytes of the chunked records being reassembled.", reassembler::bytes);
+        if(getConfig().getMaxMessagesPerSecond() > 0 || getConfig().getMaxBytesPerSecond() > 0) {
+            limiter = new SAPEnterpriseMessagingRateLimiter(getConfig().getMaxMessagesPerSecond(),
+                    getConfig().getMaxBytesPerSecond(), getMetrics());
+        }
+        if(getConfig().getFilter() != null) {
+            filter = SAPEnterpriseMessagingFilter.compile(getConfig().getFilter());
+        }
+        if(getConfig().isDeduplication()) {
+            deduplicator = new SAPEnterpriseMessagingDeduplicator(getConfig().getDeduplicationSize(),
+                    getConfig().getDeduplicationWindowMs());
+            getMetrics().gauge("sap_em_deduplication_ids", "Ids remembered for deduplication.", deduplicator::size);
+        }
+    }
+
+    Record<byte[]> createRecord(SAPEnterpriseMessagingAcknowledger acknowledger, Message message) throws Exception {
+        if(log.isTraceEnabled()) {
+            String id = message.getJMSMessageID();
+            log.trace("{} - JMSType: {}", id, message.getJMSType());
+            log.trace("{} - messageClass: {}", id, message.getClass());
+            log.trace("{} - correlationID: {}", id, message.getJMSCorrelationID());
+        }
+        if(filter != null && !filter.test(message)) {
+            log.trace("{} - dropped message not matching the filter", message.getJMSMessageID());
+            getMetrics().filtered.increment();
+            acknowledger.ack(message);
+            return null;
+        }
+        if(message instanceof BytesMessage && SAPEnterpriseMessagingReassembler.isChunk(message)) {
+            return createChunkedRecord(acknowledger, (BytesMessage) message);
+        }
+        long id = getDeduplicationId(message, message.getJMSMessageID());
+        if(id != 0 && deduplicator.contains(id)) {
+            log.debug("{} - dropped duplicate message", message.getJMSMessageID());
+            getMetrics().duplicates.increment();
+            acknowledger.ack(message);
+            return null;
+        }
         String key = message.getStringProperty(JMSX_GROUP_ID);
-        if(message instanceof BytesMessage) {
-            BytesMessage bytesMessage = (BytesMessage) message;
-            byte[] byteData = new byte[(int) bytesMessage.getBodyLength()];
-            bytesMessage.readBytes(byteData);
-            return new SAPEnterpriseMessagingRecord(message, key, byteData, session);
+        SAPEnterpriseMessagingBodyCodec codec = codecs.get();
+        String compression = message.getStringProperty(SAPEnterpriseMessagingCompressor.COMPRESSION_PROPERTY);
+        byte[] byteData;
+        long allocated;
+        if(compression != null && message instanceof BytesMessage) {
+            try {
+                byteData = compressors.get().decompress((BytesMessage) message, compression, uncompressedSize(message));
+            } catch(DataFormatException | NumberFormatException e) {
+                log.warn("{} - failed to decompress body: {}", message.getJMSMessageID(), e.getMessage());
+                getMetrics().failed.increment();
+                acknowledger.reject(message);
+                return null;
+            }
+            allocated = byteData.length;
+        } else if(message instanceof BytesMessage) {
+            byteData = codec.read((BytesMessage) message);
+            allocated = codec.allocated();
         } else if(message instanceof TextMessage) {
-            TextMessage textMessage = (TextMessage) message;
-            byte[] byteData = textMessage.getText().getBytes();
-            return new SAPEnterpriseMessagingRecord(message, key, byteData, session);
+            String text = ((TextMessage) message).getText();
+            // a text message without a body is read like an empty bytes message
+            byteData = text == null ? new byte[0] : codec.encode(text);
+            allocated = text == null ? 0 : codec.allocated();
+        } else if(message instanceof MapMessage) {
+            byteData = codec.encode((MapMessage) message);
+            allocated = codec.allocated();
         } else {
-            log.warn("{} - unsupported JMS message {}", message.getJMSMessageID(), message.getClass());
-            close();
-            throw new RuntimeException("unhandled JMS message " + message.getClass());
+            log.warn("{} - rejected unsupported JMS message {}", message.getJMSMessageID(), message.getClass());
+            getMetrics().failed.increment();
+            acknowledger.reject(message);
+            return null;
+        }
+        if(byteData.length > largestMessage) {
+            largestMessage = byteData.length;
+        }
+        SAPEnterpriseMessagingMetrics metrics = getMetrics();
+        metrics.received.increment();
+        metrics.receivedBytes.add(byteData.length);
+        metrics.allocatedBytes.add(allocated);
+        return new SAPEnterpriseMessagingRecord(message, key, byteData, acknowledger, null, metrics,
+                getConfig().getForwardProperties(), deduplicator, id);
+    }
+
+    /**
+     * Adds the chunk to the reassembler, returning the record once all of its chunks are received.
+     */
+    private Record<byte[]> createChunkedRecord(SAPEnterpriseMessagingAcknowledger acknowledger, BytesMessage message)
+            throws Exception {
+        if(message.getBodyLength() > largestMessage) {
+            largestMessage = (int) message.getBodyLength();
+        }
+        SAPEnterpriseMessagingReassembler.Group group;
+        try {
+            group = reassembler.add(acknowledger, message);
+        } catch(IllegalStateException e) {
+            log.warn("{} - failed to reassemble chunk: {}", message.getJMSMessageID(), e.getMessage());
+            getMetrics().failed.increment();
+            acknowledger.fail(message);
+            return null;
+        } catch(IllegalArgumentException e) {
+            log.warn("{} - rejected invalid chunk: {}", message.getJMSMessageID(), e.getMessage());
+            getMetrics().failed.increment();
+            acknowledger.reject(message);
+            return null;
+        }
+        if(group == null) {
+            return null;
+        }
+        Message last = group.message();
+        long id = getDeduplicationId(last, last.getStringProperty(SAPEnterpriseMessagingReassembler.CHUNK_ID));
+        if(id != 0 && deduplicator.contains(id)) {
+            log.debug("{} - dropped duplicate chunked message", last.getJMSMessageID());
+            getMetrics().duplicates.increment();
+            group.ack();
+            return null;
+        }
+        String compression = last.getStringProperty(SAPEnterpriseMessagingCompressor.COMPRESSION_PROPERTY);
+        byte[] byteData = group.body;
+        if(compression != null) {
+            try {
+                byteData = compressors.get()
+                        .decompress(group.body, group.body.length, compression, uncompressedSize(last));
+            } catch(DataFormatException | NumberFormatException e) {
+                log.warn("{} - failed to decompress chunked body: {}", last.getJMSMessageID(), e.getMessage());
+                getMetrics().failed.increment();
+                group.reject();
+                return null;
+            }
+        }
+
+        SAPEnterpriseMessagingMetrics metrics = getMetrics();
+        metrics.received.increment();
+        metrics.receivedBytes.add(byteData.length);
+        metrics.allocatedBytes.add(byteData == group.body ? byteData.length : group.body.length + byteData.length);
+        return new SAPEnterpriseMessagingRecord(last, last.getStringProperty(JMSX_GROUP_ID), byteData, acknowledger,
+                group, metrics, getConfig().getForwardProperties(), deduplicator, id);
+    }
+
+    /**
+     * @param defaultId the id of the message if it has no deduplication property
+     * @return the hash of the id of the message to deduplicate it by, or 0 if deduplication is disabled or the message
+     * has no id
+     */
+    private long getDeduplicationId(Message message, String defaultId) throws JMSException {
+        if(deduplicator == null) {
+            return 0;
+        }
+        String property = getConfig().getDeduplicationProperty();
+        String id = property == null ? null : message.getStringProperty(property);
+        if(id == null) {
+            id = defaultId;
         }
+        return id == null ? 0 : SAPEnterpriseMessagingDeduplicator.hash(id);
     }
 
+    private static int uncompressedSize(Message message) throws JMSException {
+        return message.propertyExists(SAPEnterpriseMessagingCompressor.UNCOMPRESSED_SIZE_PROPERTY)
+                ? message.getIntProperty(SAPEnterpriseMessagingCompressor.UNCOMPRESSED_SIZE_PROPERTY)
+                : -1;
+    }
+
+    /**
+     * @return {@code true} for the JMS properties used by the connector itself, which are not forwarded to Pulsar
+     */
+    private static boolean isConnectorProperty(String name) {
+        return name.startsWith("PulsarChunk")
+                || name.equals(SAPEnterpriseMessagingCompressor.COMPRESSION_PROPERTY)
+                || name.equals(SAPEnterpriseMessagingCompressor.UNCOMPRESSED_SIZE_PROPERTY)
+                || name.equals(SAPEnterpriseMessagingDeduplicator.SEQUENCE_ID_PROPERTY);
+    }
+
+    /**
+     * A record whose properties are only copied from the JMS message when Pulsar first asks for them; a record
+     * reassembled from chunks settles all of them. The id of a deduplicated record is only remembered once Pulsar
+     * acks it, so that the redelivery of a failed record is not dropped.
+     */
     static private class SAPEnterpriseMessagingRecord implements Record<byte[]> {
 
         private final Message message;
         private final String key;
         private final byte[] value;
-        private final Session session;
-        private final Map<String, String> properties;
+        private final SAPEnterpriseMessagingAcknowledger acknowledger;
+        private final SAPEnterpriseMessagingReassembler.Group group;
+        private final SAPEnterpriseMessagingMetrics metrics;
+        private final List<String> forwardProperties;
+        private final SAPEnterpriseMessagingDeduplicator deduplicator;
+        private final long id;
+        private final long received = System.nanoTime();
+        private Map<String, String> properties;
 
-        SAPEnterpriseMessagingRecord(Message message, String key, byte[] value, Session session) throws JMSException {
+        SAPEnterpriseMessagingRecord(Message message, String key, byte[] value,
+                                     SAPEnterpriseMessagingAcknowledger acknowledger,
+                                     SAPEnterpriseMessagingReassembler.Group group,
+                                     SAPEnterpriseMessagingMetrics metrics, List<String> forwardProperties,
+                                     SAPEnterpriseMessagingDeduplicator deduplicator, long id) {
             this.message = message;
             this.key = key;
             this.value = value;
-            this.session = session;
-
-            Enumeration keys = message.getPropertyNames();
-            if(keys.hasMoreElements()) {
-                this.properties = mapProperties(message, keys);
-            } else {
-                this.properties = Collections.emptyMap();
-            }
+            this.acknowledger = acknowledger;
+            this.group = group;
+            this.metrics = metrics;
+            this.forwardProperties = forwardProperties;
+            this.deduplicator = deduplicator;
+            this.id = id;
         }
 
         private static Map<String, String> mapProperties(Message message, Enumeration keys) throws JMSException {
+            if(!keys.hasMoreElements()) {
+                return Collections.emptyMap();
+            }
             String key, value;
-            String id = message.getJMSMessageID();
             Map<String, String> properties = new HashMap<>();
             while(keys.hasMoreElements()) {
                 key = (String) keys.nextElement();
+                if(isConnectorProperty(key)) {
+                    continue;
+                }
                 value = message.getStringProperty(key);
                 properties.put(key, value);
             }
             return properties;
         }
 
+        private static Map<String, String> mapProperties(Message message, List<String> keys) throws JMSException {
+            Map<String, String> properties = null;
+            for(String key : keys) {
+                String value = message.getStringProperty(key);
+                if(value != null) {
+                    if(properties == null) {
+                        properties = new HashMap<>();
+                    }
+                    properties.put(key, value);
+                }
+            }
+            return properties == null ? Collections.emptyMap() : properties;
+        }
+
 
         @Override
         public void ack() {
-            try {
-                message.acknowledge();
-            } catch (JMSException e) {
-                throw new IllegalStateException("message acknowledge failed", e);
+            metrics.ackLatency.record(System.nanoTime() - received);
+            if(id != 0) {
+                deduplicator.add(id);
+            }
+            if(group != null) {
+                group.ack();
+            } else {
+                acknowledger.ack(message);
             }
         }
 
         @Override
         public void fail() {
-            try {
-                session.rollback();
-            } catch (JMSException e) {
-                throw new IllegalStateException("message rollback failed", e);
+            metrics.ackLatency.record(System.nanoTime() - received);
+            metrics.failed.increment();
+            if(group != null) {
+                group.fail();
+            } else {
+                acknowledger.fail(message);
             }
         }
 
@@ -175,6 +485,15 @@ public class SAPEnterpriseMessagingSource extends SAPEnterpriseMessagingConnecto
 
         @Override
         public Map<String, String> getProperties() {
+            if(properties == null) {
+                try {
+                    properties = forwardProperties == null
+                            ? mapProperties(message, message.getPropertyNames())
+                            : mapProperties(message, forwardProperties);
+                } catch (JMSException e) {
+                    throw new IllegalStateException("message properties could not be read", e);
+                }
+            }
             return properties;
         }
 
@@ -0,0 +1,201 @@
+package com.richemont.digital.pulsar;
+
+/*-
+ * #%L
+ * pulsar-sap-em-connector
+ * %%
+ * Copyright (C) 2020 Richemont SA
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of messages and bytes in flight, i.e. sent but not yet completed by the broker. A single message
+ * larger than the byte limit is admitted when nothing else is in flight so that it can never stall the sink.
+ * <p>
+ * An adaptive window adjusts its message limit to the broker's feedback with additive increase and multiplicative
+ * decrease: each message completed within the target latency grows the limit by one message per window's worth of
+ * completions, up to the maximum, while a slower completion or a failed send halves it, at most once per round trip
+ * so that the completions of a single congested window do not collapse it.
+ */
+class SAPEnterpriseMessagingWindow {
+
+    private final int maxMessages;
+    private final long maxBytes;
+    private final boolean adaptive;
+    private final long latencyTarget;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+
+    private int messages;
+    private long bytes;
+    private double limit;
+    private long decreased;
+
+    SAPEnterpriseMessagingWindow(int maxMessages, long maxBytes) {
+        this(maxMessages, maxBytes, false, 0);
+    }
+
+    /**
+     * @param adaptive whether the message limit adapts to the completions
+     * @param latencyTargetMs the completion latency above which an adaptive window shrinks
+     */
+    SAPEnterpriseMessagingWindow(int maxMessages, long maxBytes, boolean adaptive, long latencyTargetMs) {
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.adaptive = adaptive;
+        this.latencyTarget = TimeUnit.MILLISECONDS.toNanos(latencyTargetMs);
+        this.limit = maxMessages;
+        // long enough ago for the first congestion to shrink the window
+        this.decreased = System.nanoTime() - Long.MAX_VALUE / 2;
+    }
+
+    /**
+     * Reserves room for a message in the window.
+     *
+     * @param size the message size in bytes
+     * @param timeout millis to wait for room; 0 to return immediately and negative to wait indefinitely
+     * @return {@code false} if there was no room within the timeout
+     */
+    boolean acquire(long size, long timeout) throws InterruptedException {
+        long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while(isFull(size)) {
+                if(timeout < 0) {
+                    released.await();
+                } else if(nanos <= 0) {
+                    return false;
+                } else {
+                    nanos = released.awaitNanos(nanos);
+                }
+            }
+            messages++;
+            bytes += size;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Releases the room reserved for a message that was not sent.
+     */
+    void release(long size) {
+        lock.lock();
+        try {
+            doRelease(size);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Releases the room reserved for a message the broker completed.
+     *
+     * @param latency nanos from sending the message until its completion
+     */
+    void completed(long size, long latency) {
+        lock.lock();
+        try {
+            doRelease(size);
+            if(!adaptive) {
+                return;
+            }
+            if(latency > latencyTarget) {
+                decrease(latency);
+            } else {
+                limit = Math.min(maxMessages, limit + 1 / limit);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Releases the room reserved for a message the broker failed, e.g. because the sender is throttled.
+     *
+     * @param latency nanos from sending the message until its failure
+     */
+    void failed(long size, long latency) {
+        lock.lock();
+        try {
+            doRelease(size);
+            if(adaptive) {
+                decrease(latency);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int messages() {
+        lock.lock();
+        try {
+            return messages;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long bytes() {
+        lock.lock();
+        try {
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the current message limit
+     */
+    int limit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void doRelease(long size) {
+        messages--;
+        bytes -= size;
+        released.signalAll();
+    }
+
+    private void decrease(long latency) {
+        long now = System.nanoTime();
+        if(now - decreased >= Math.max(latency, latencyTarget)) {
+            limit = Math.max(1, limit / 2);
+            decreased = now;
+        }
+    }
+
+    private boolean isFull(long size) {
+        return messages >= (int) limit || (messages > 0 && bytes + size > maxBytes);
+    }
+}
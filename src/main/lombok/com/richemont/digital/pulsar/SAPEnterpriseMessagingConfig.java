@@ -39,12 +39,15 @@ import lombok.Data;
 import lombok.experimental.Accessors;
 import org.apache.pulsar.io.core.annotations.FieldDoc;
 
+import javax.jms.ConnectionFactory;
 import javax.jms.Destination;
 import javax.jms.JMSException;
 import javax.jms.Session;
 import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -56,6 +59,8 @@ public class SAPEnterpriseMessagingConfig implements Serializable {
 
     private static final long serialVersionUID = 1L;
 
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
     @FieldDoc(
             required = true,
             defaultValue = "",
@@ -92,6 +97,12 @@ public class SAPEnterpriseMessagingConfig implements Serializable {
             help = "SAP Enterprise Messaging Service URL.")
     private String serviceURL;
 
+    @FieldDoc(
+            required = false,
+            defaultValue = "",
+            help = "Class name of a JMS ConnectionFactory with a constructor taking the serviceURL, used instead of the SAP Enterprise Messaging client, e.g. org.apache.qpid.jms.JmsConnectionFactory for a local AMQP broker.")
+    private String connectionFactoryClass;
+
     @FieldDoc(
             required = true,
             defaultValue = "amqp10ws",
@@ -104,6 +115,48 @@ public class SAPEnterpriseMessagingConfig implements Serializable {
             help = "The SAPEnterpriseMessaging destination name optionally prefixed with 'topic:'; if not prefixed 'queue:' is assumed.")
     private String destination;
 
+    @FieldDoc(
+            required = false,
+            defaultValue = "",
+            help = "Further destinations the source consumes from over the same connection, named like destination; messages of all the destinations are received in turn.")
+    private List<String> destinations;
+
+    @FieldDoc(
+            required = false,
+            defaultValue = "",
+            help = "JMS message selector of the source consumers, evaluated by the broker so that messages not matching it are never delivered.")
+    private String messageSelector;
+
+    @FieldDoc(
+            required = false,
+            defaultValue = "",
+            help = "Condition on the JMSType, JMSCorrelationID and JMSPriority headers and the properties of the received messages, in a subset of the message selector syntax; the source acknowledges the messages not matching it without copying their bodies or forwarding them.")
+    private String filter;
+
+    @FieldDoc(
+            required = false,
+            defaultValue = "none",
+            help = "How the sink derives the destination of each record: 'none' sends all records to destination, 'topic' to the local name of the record's Pulsar topic and 'property' to the value of the routingProperty record property; records without a route are sent to destination.")
+    private String routing = "none";
+
+    @FieldDoc(
+            required = false,
+            defaultValue = "destination",
+            help = "Record property holding the destination name when routing is 'property'.")
+    private String routingProperty = "destination";
+
+    @FieldDoc(
+            required = false,
+            defaultValue = "",
+            help = "Prefix prepended to the routed destination names, e.g. 'topic:' or a queue namespace.")
+    private String routingPrefix = "";
+
+    @FieldDoc(
+            required = false,
+            defaultValue = "64",
+            help = "Maximum number of producers of routed destinations each sink session keeps open; the least recently used one is closed beyond.")
+    private int maxRoutedProducers = 64;
+
     @FieldDoc(
             required = false,
             defaultValue = "20",
@@ -122,19 +175,365 @@ public class SAPEnterpriseMessagingConfig implements Serializable {
             help = "Delay in millis between reeconnect attempts after the first.")
     private int reconnectDelay= 5000;
 
+    @FieldDoc(
+            required = false,
+            defaultValue = "false",
+            help = "Whether the connector connects in the background so that opening it returns immediately; failed attempts are retried like reconnects.")
+    private boolean asyncConnect;
+
+    @FieldDoc(
+            required = false,
+            defaultValue = "500",
+            help = "Delay in millis before the first attempt at rebuilding a failed connection and its sessions, doubled with each failed attempt; a random jitter of up to half the delay is subtracted.")
+    private long reconnectBackoffMs = 500;
+
+    @FieldDoc(
+            required = false,
+            defaultValue = "30000",
+            help = "Maximum delay in millis between attempts at rebuilding a failed connection and its sessions.")
+    private long reconnectBackoffMaxMs = 30000;
+
+    @FieldDoc(
+            required = false,
+            defaultValue = "false",
+            help = "Whether a second, established connection is kept open and switched to when the connection fails.")
+    private boolean standbyConnection;
+
+    @FieldDoc(
+            required = false,
+            defaultValue = "true",
+            help = "Whether the connection is shared with the other sources and sinks of the worker connecting to the same service with the same credentials; each still opens its own sessions.")
+    private boolean sharedConnection = true;
+
+    @FieldDoc(
+            required = false,
+            defaultValue = "1",
+            help = "Number of sessions, each with its own consumer, opened by the source on the shared connection.")
+    private int consumerSessions = 1;
+
+    @FieldDoc(
+            required = false,
+            defaultValue = "0",
+            help = "Number of threads decoding the messages received by the source, messages with the same JMSXGroupID always in order by the same thread; 0 to decode them on the receiving threads.")
+    private int decodeThreads;
+
+    @FieldDoc(
+            required = false,
+            defaultValue = "1000",
+            help = "Maximum number of messages received by the source consumers that are waiting to be read by Pulsar.")
+    private int receiveQueueSize = 1000;
+
+    @FieldDoc(
+            required = false,
+            defaultValue = "67108864",
+            help = "Maximum total body size in bytes of the messages received by the source that are waiting to be read by Pulsar.")
+    private long receiveQueueBytes = 64 * 1024 * 1024;
+
+    @FieldDoc(
+            required = false,
+            defaultValue = "client",
+            help = "How the source acknowledges messages: 'client' acknowledges completed batches, 'transacted' commits completed batches, 'individual' settles each message on its own.")
+    private String ackMode = "client";
+
+    @FieldDoc(
+            required = false,
+            defaultValue = "100",
+            help = "Maximum number of messages acknowledged or committed together by the source.")
+    private int ackBatchSize = 100;
+
+    @FieldDoc(
+            required = false,
+            defaultValue = "1000",
+            help = "Delay in millis after which the source stops adding messages to a batch and acknowledges it once completed.")
+    private long ackBatchLingerMs = 1000;
+
+    @FieldDoc(
+            required = false,
+            defaultValue = "",
+            help = "Names of the JMS message properties the source forwards as Pulsar record properties; all properties are forwarded if not set.")
+    private List<String> forwardProperties;
+
+    @FieldDoc(
+            required = false,
+            defaultValue = "1",
+            help = "Number of sessions, each with its own producer, opened by the sink; records with the same key are always sent by the same session.")
+    private int producerSessions = 1;
+
+    @FieldDoc(
+            required = false,
+            defaultValue = "1000",
+            help = "Maximum number of messages sent by the sink that are not yet completed by SAP Enterprise Messaging.")
+    private int maxInflightMessages = 1000;
+
+    @FieldDoc(
+            required = false,
+            defaultValue = "67108864",
+            help = "Maximum total body size in bytes of the messages sent by the sink that are not yet completed.")
+    private long maxInflightBytes = 64 * 1024 * 1024;
+
+    @FieldDoc(
+            required = false,
+            defaultValue = "-1",
+            help = "Delay in millis the sink waits for room in the in-flight window before failing the record; -1 to wait indefinitely.")
+    private long inflightTimeoutMs = -1;
+
+    @FieldDoc(
+            required = false,
+            defaultValue = "",
+            help = "Directory of the journal the sink spills the records it cannot send to, in a subdirectory per connection name and instance; spilled records are acked once on disk and replayed in order once connected, and while any are left further records are spilled behind them. Records are failed instead if not set.")
+    private String spillDirectory;
+
+    @FieldDoc(
+            required = false,
+            defaultValue = "67108864",
+            help = "Size in bytes of the memory-mapped segment files of the spill journal.")
+    private int spillSegmentBytes = 64 * 1024 * 1024;
+
+    @FieldDoc(
+            required = false,
+            defaultValue = "1073741824",
+            help = "Maximum total size in bytes of the spill journal segment files; records are failed once it is full.")
+    private long maxSpillBytes = 1024L * 1024 * 1024;
+
+    @FieldDoc(
+            required = false,
+            defaultValue = "0",
+            help = "Maximum number of spilled records per second the sink replays; 0 for as fast as the in-flight window allows.")
+    private long spillDrainMessagesPerSecond;
+
+    @FieldDoc(
+            required = false,
+            defaultValue = "false",
+            help = "Whether the sink adapts its in-flight message limit to the broker: it grows while sends complete within adaptiveLatencyMs, up to maxInflightMessages, and halves when they are slower or fail.")
+    private boolean adaptiveWindow;
+
+    @FieldDoc(
+            required = false,
+            defaultValue = "1000",
+            help = "Send latency in millis above which the adaptive in-flight window of the sink shrinks.")
+    private long adaptiveLatencyMs = 1000;
+
+    @FieldDoc(
+            required = false,
+            defaultValue = "0",
+            help = "Maximum number of messages per second the source receives or the sink sends; 0 for no limit.")
+    private long maxMessagesPerSecond;
+
+    @FieldDoc(
+            required = false,
+            defaultValue = "0",
+            help = "Maximum number of body bytes per second the source receives or the sink sends; 0 for no limit.")
+    private long maxBytesPerSecond;
+
+    @FieldDoc(
+            required = false,
+            defaultValue = "bytes",
+            help = "Type of the JMS messages sent by the sink: 'bytes' sends the record value as is, 'text' as UTF-8 text and 'map' sends the fields of a JSON object value as map entries; records that cannot be converted are failed on their own, or dropped if spilled.")
+    private String messageType = "bytes";
+
+    @FieldDoc(
+            required = false,
+            defaultValue = "none",
+            help = "Compression of the bodies of the bytes messages sent by the sink: 'none', 'deflate' or 'gzip'; compressed messages are flagged with the PulsarCompression property and decompressed by the source.")
+    private String compression = "none";
+
+    @FieldDoc(
+            required = false,
+            defaultValue = "1024",
+            help = "Minimum record value size in bytes the sink compresses.")
+    private int compressionThreshold = 1024;
+
+    @FieldDoc(
+            required = false,
+            defaultValue = "-1",
+            help = "Compression level from 0 (none) to 9 (best); -1 for the default level.")
+    private int compressionLevel = -1;
+
+    @FieldDoc(
+            required = false,
+            defaultValue = "67108864",
+            help = "Maximum size in bytes of a body once decompressed by the source; messages claiming or inflating to more, and corrupted ones, are rejected.")
+    private int maxDecompressedSize = 64 * 1024 * 1024;
+
+    @FieldDoc(
+            required = false,
+            defaultValue = "0",
+            help = "Maximum body size in bytes of the messages sent by the sink; larger bodies are split into chunks reassembled by the source. 0 to never split bodies.")
+    private int maxMessageSize;
+
+    @FieldDoc(
+            required = false,
+            defaultValue = "67108864",
+            help = "Maximum total body size in bytes of the chunked records the source reassembles at the same time; chunks of further records are failed for redelivery, and chunks of records larger than the cap are rejected.")
+    private long maxReassemblyBytes = 64 * 1024 * 1024;
+
+    @FieldDoc(
+            required = false,
+            defaultValue = "60000",
+            help = "Delay in millis after which the source drops the received chunks of a record that is still incomplete: they are rejected with the individual ack mode and acknowledged otherwise.")
+    private long reassemblyTimeoutMs = 60000;
+
+    @FieldDoc(
+            required = false,
+            defaultValue = "false",
+            help = "Whether the source drops the messages whose records it already delivered to Pulsar and the sink the records it already sent, within the deduplication window; the sink also sets the PulsarSequenceId property of its messages to the topic partition and sequence id of the record.")
+    private boolean deduplication;
+
+    @FieldDoc(
+            required = false,
+            defaultValue = "",
+            help = "JMS message property identifying the messages the source deduplicates, e.g. PulsarSequenceId for messages sent by a deduplicating sink; the JMS message id, or the chunk id of chunked records, if not set or absent.")
+    private String deduplicationProperty;
+
+    @FieldDoc(
+            required = false,
+            defaultValue = "100000",
+            help = "Maximum number of ids remembered for deduplication, at most 4194304; the oldest ones are forgotten beyond. Takes up to 48 bytes of heap per id, allocated up front: about 4 MB at the default and 128 MB at the maximum.")
+    private int deduplicationSize = 100000;
+
+    @FieldDoc(
+            required = false,
+            defaultValue = "600000",
+            help = "Delay in millis after which an id is forgotten for deduplication.")
+    private long deduplicationWindowMs = 600000;
+
+    @FieldDoc(
+            required = false,
+            defaultValue = "1",
+            help = "Number of messages the sink sends in a single transaction; 1 sends each message on its own without a transaction.")
+    private int batchSize = 1;
+
+    @FieldDoc(
+            required = false,
+            defaultValue = "100",
+            help = "Delay in millis after which the sink commits an incomplete batch.")
+    private long batchLingerMs = 100;
+
+    @FieldDoc(
+            required = false,
+            defaultValue = "60000",
+            help = "Interval in millis at which the connector metrics are published to Pulsar; 0 to not publish them.")
+    private long metricsIntervalMs = 60000;
+
+    @FieldDoc(
+            required = false,
+            defaultValue = "0",
+            help = "Port on which the connector metrics are served in the Prometheus text format on /metrics; 0 to not serve them. Connectors of the same process may share a port.")
+    private int metricsPort;
+
     public void validate() {
         Preconditions.checkNotNull(connectionName, "connectionName property not set.");
-        Preconditions.checkNotNull(clientID, "clientID property not set.");
-        Preconditions.checkNotNull(clientSecret, "clientSecret property not set.");
-        Preconditions.checkNotNull(tokenEndpoint, "clientSecret property not set.");
-        Preconditions.checkNotNull(protocol, "protocol property not set.");
+        if(connectionFactoryClass == null) {
+            Preconditions.checkNotNull(clientID, "clientID property not set.");
+            Preconditions.checkNotNull(clientSecret, "clientSecret property not set.");
+            Preconditions.checkNotNull(tokenEndpoint, "clientSecret property not set.");
+            Preconditions.checkNotNull(protocol, "protocol property not set.");
+            Preconditions.checkNotNull(xsappname, "xsappname property not set.");
+        }
         Preconditions.checkNotNull(serviceURL, "serviceURL property not set.");
-        Preconditions.checkNotNull(xsappname, "xsappname property not set.");
-        Preconditions.checkNotNull(destination, "destination property not set.");
+        Preconditions.checkArgument(!getJMSDestinations().isEmpty() || !SAPEnterpriseMessagingSink.NONE.equals(routing),
+                "destination property not set.");
+        if(filter != null) {
+            SAPEnterpriseMessagingFilter.compile(filter);
+        }
+        Preconditions.checkArgument(SAPEnterpriseMessagingSink.NONE.equals(routing)
+                        || SAPEnterpriseMessagingSink.TOPIC.equals(routing)
+                        || SAPEnterpriseMessagingSink.PROPERTY.equals(routing),
+                "routing property must be 'none', 'topic' or 'property'.");
+        Preconditions.checkNotNull(routingProperty, "routingProperty property not set.");
+        Preconditions.checkNotNull(routingPrefix, "routingPrefix property not set.");
+        Preconditions.checkArgument(maxRoutedProducers > 0, "maxRoutedProducers property must be positive.");
+        Preconditions.checkArgument(reconnectBackoffMs > 0, "reconnectBackoffMs property must be positive.");
+        Preconditions.checkArgument(reconnectBackoffMaxMs >= reconnectBackoffMs,
+                "reconnectBackoffMaxMs property must not be less than reconnectBackoffMs.");
+        Preconditions.checkArgument(consumerSessions > 0, "consumerSessions property must be positive.");
+        Preconditions.checkArgument(decodeThreads >= 0, "decodeThreads property must not be negative.");
+        Preconditions.checkArgument(receiveQueueSize > 0, "receiveQueueSize property must be positive.");
+        Preconditions.checkArgument(receiveQueueBytes > 0, "receiveQueueBytes property must be positive.");
+        Preconditions.checkArgument(SAPEnterpriseMessagingAcknowledger.CLIENT.equals(ackMode)
+                        || SAPEnterpriseMessagingAcknowledger.TRANSACTED.equals(ackMode)
+                        || SAPEnterpriseMessagingAcknowledger.INDIVIDUAL.equals(ackMode),
+                "ackMode property must be 'client', 'transacted' or 'individual'.");
+        Preconditions.checkArgument(ackBatchSize > 0, "ackBatchSize property must be positive.");
+        Preconditions.checkArgument(producerSessions > 0, "producerSessions property must be positive.");
+        Preconditions.checkArgument(maxInflightMessages > 0, "maxInflightMessages property must be positive.");
+        Preconditions.checkArgument(maxInflightBytes > 0, "maxInflightBytes property must be positive.");
+        Preconditions.checkArgument(spillSegmentBytes > 0, "spillSegmentBytes property must be positive.");
+        Preconditions.checkArgument(maxSpillBytes >= spillSegmentBytes,
+                "maxSpillBytes property must not be less than spillSegmentBytes.");
+        Preconditions.checkArgument(spillDrainMessagesPerSecond >= 0,
+                "spillDrainMessagesPerSecond property must not be negative.");
+        Preconditions.checkArgument(adaptiveLatencyMs > 0, "adaptiveLatencyMs property must be positive.");
+        Preconditions.checkArgument(maxMessagesPerSecond >= 0, "maxMessagesPerSecond property must not be negative.");
+        Preconditions.checkArgument(maxBytesPerSecond >= 0, "maxBytesPerSecond property must not be negative.");
+        Preconditions.checkArgument(SAPEnterpriseMessagingSender.BYTES.equals(messageType)
+                        || SAPEnterpriseMessagingSender.TEXT.equals(messageType)
+                        || SAPEnterpriseMessagingSender.MAP.equals(messageType),
+                "messageType property must be 'bytes', 'text' or 'map'.");
+        Preconditions.checkArgument(SAPEnterpriseMessagingCompressor.NONE.equals(compression)
+                        || SAPEnterpriseMessagingCompressor.DEFLATE.equals(compression)
+                        || SAPEnterpriseMessagingCompressor.GZIP.equals(compression),
+                "compression property must be 'none', 'deflate' or 'gzip'.");
+        Preconditions.checkArgument(SAPEnterpriseMessagingCompressor.NONE.equals(compression)
+                        || SAPEnterpriseMessagingSender.BYTES.equals(messageType),
+                "compression property requires the 'bytes' messageType.");
+        Preconditions.checkArgument(compressionLevel >= -1 && compressionLevel <= 9,
+                "compressionLevel property must be between -1 and 9.");
+        Preconditions.checkArgument(maxDecompressedSize > 0 && maxDecompressedSize <= Integer.MAX_VALUE - 8,
+                "maxDecompressedSize property must be between 1 and 2147483639.");
+        Preconditions.checkArgument(maxMessageSize >= 0, "maxMessageSize property must not be negative.");
+        Preconditions.checkArgument(maxMessageSize == 0 || SAPEnterpriseMessagingSender.BYTES.equals(messageType),
+                "maxMessageSize property requires the 'bytes' messageType.");
+        Preconditions.checkArgument(maxReassemblyBytes > 0, "maxReassemblyBytes property must be positive.");
+        Preconditions.checkArgument(reassemblyTimeoutMs > 0, "reassemblyTimeoutMs property must be positive.");
+        Preconditions.checkArgument(deduplicationSize > 0 && deduplicationSize <= 1 << 22,
+                "deduplicationSize property must be between 1 and 4194304.");
+        Preconditions.checkArgument(deduplicationWindowMs > 0, "deduplicationWindowMs property must be positive.");
+        Preconditions.checkArgument(batchSize > 0, "batchSize property must be positive.");
+        Preconditions.checkArgument(metricsIntervalMs >= 0, "metricsIntervalMs property must not be negative.");
+        Preconditions.checkArgument(metricsPort >= 0, "metricsPort property must not be negative.");
     }
 
-    String getJMSDestination() {
-        return destination.contains(":") ? destination : "queue:" + destination;
+    /**
+     * Validates the properties required by the source on top of {@link #validate()}: routing only applies to the
+     * sink, so the source always needs a destination to consume from.
+     */
+    public void validateSource() {
+        Preconditions.checkArgument(!getJMSDestinations().isEmpty(), "destination property not set.");
+    }
+
+    /**
+     * @return destination followed by destinations, prefixed with 'queue:' unless already prefixed
+     */
+    List<String> getJMSDestinations() {
+        List<String> names = new ArrayList<>();
+        if(destination != null) {
+            names.add(toJMSDestination(destination));
+        }
+        if(destinations != null) {
+            for(String name : destinations) {
+                names.add(toJMSDestination(name));
+            }
+        }
+        return names;
+    }
+
+    static String toJMSDestination(String name) {
+        return name.contains(":") ? name : "queue:" + name;
+    }
+
+    ConnectionFactory getConnectionFactory() {
+        if(connectionFactoryClass == null) {
+            return getMessagingServiceJmsConnectionFactory();
+        }
+        try {
+            return Class.forName(connectionFactoryClass)
+                    .asSubclass(ConnectionFactory.class)
+                    .getConstructor(String.class)
+                    .newInstance(serviceURL);
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            throw new IllegalStateException("Unable to create the Connection Factory " + connectionFactoryClass, e);
+        }
     }
 
     MessagingServiceJmsConnectionFactory getMessagingServiceJmsConnectionFactory() {
@@ -174,14 +573,13 @@ public class SAPEnterpriseMessagingConfig implements Serializable {
     }
 
     public static SAPEnterpriseMessagingConfig load(Map<String, Object> map) throws IOException {
-        ObjectMapper mapper = new ObjectMapper();
-        return mapper.readValue(new ObjectMapper().writeValueAsString(map), SAPEnterpriseMessagingConfig.class);
+        return MAPPER.readValue(MAPPER.writeValueAsString(map), SAPEnterpriseMessagingConfig.class);
     }
 
 
     // -- Object
 
     public String toString() {
-        return "[" + connectionName + "](" + getJMSDestination() + ")";
+        return "[" + connectionName + "](" + String.join(",", getJMSDestinations()) + ")";
     }
 }
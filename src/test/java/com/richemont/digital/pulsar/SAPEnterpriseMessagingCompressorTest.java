@@ -0,0 +1,191 @@
+package com.richemont.digital.pulsar;
+
+/*-
+ * #%L
+ * pulsar-sap-em-connector
+ * %%
+ * Copyright (C) 2020 Richemont SA
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class SAPEnterpriseMessagingCompressorTest {
+
+    private static final byte[] VALUE = repeat("{\"order\": 42, \"status\": \"created\"} ", 100);
+
+    private final SAPEnterpriseMessagingCompressor gzip =
+            new SAPEnterpriseMessagingCompressor(SAPEnterpriseMessagingCompressor.GZIP, Deflater.DEFAULT_COMPRESSION);
+    private final SAPEnterpriseMessagingCompressor deflate =
+            new SAPEnterpriseMessagingCompressor(SAPEnterpriseMessagingCompressor.DEFLATE, Deflater.DEFAULT_COMPRESSION);
+    private final SAPEnterpriseMessagingCompressor decompressor = new SAPEnterpriseMessagingCompressor(1024 * 1024);
+
+    @After
+    public void close() {
+        gzip.close();
+        deflate.close();
+        decompressor.close();
+    }
+
+    @Test
+    public void roundTrips() throws DataFormatException {
+        byte[] gzipped = compress(gzip, VALUE);
+        assertArrayEquals(VALUE, decompress(gzipped, gzipped.length, VALUE.length));
+        assertArrayEquals(VALUE, decompress(gzipped, gzipped.length, -1));
+        byte[] deflated = compress(deflate, VALUE);
+        assertArrayEquals(VALUE, decompressor.decompress(deflated, deflated.length,
+                SAPEnterpriseMessagingCompressor.DEFLATE, VALUE.length));
+        assertArrayEquals(VALUE, decompressor.decompress(deflated, deflated.length,
+                SAPEnterpriseMessagingCompressor.DEFLATE, -1));
+    }
+
+    @Test
+    public void readsGzipWrittenByTheJdk() throws DataFormatException, IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try(GZIPOutputStream stream = new GZIPOutputStream(out)) {
+            stream.write(VALUE);
+        }
+        byte[] gzipped = out.toByteArray();
+        assertArrayEquals(VALUE, decompress(gzipped, gzipped.length, -1));
+    }
+
+    @Test
+    public void readsGzipWithOptionalHeaderFields() throws DataFormatException {
+        byte[] gzipped = compress(gzip, VALUE);
+        byte[] extra = {4, 0, 'a', 'b', 'c', 'd'};
+        byte[] name = {'v', 'a', 'l', 'u', 'e', 0};
+        byte[] withHeaders = new byte[gzipped.length + extra.length + name.length];
+        System.arraycopy(gzipped, 0, withHeaders, 0, 10);
+        withHeaders[3] = 4 | 8;
+        System.arraycopy(extra, 0, withHeaders, 10, extra.length);
+        System.arraycopy(name, 0, withHeaders, 10 + extra.length, name.length);
+        System.arraycopy(gzipped, 10, withHeaders, 10 + extra.length + name.length, gzipped.length - 10);
+        assertArrayEquals(VALUE, decompress(withHeaders, withHeaders.length, VALUE.length));
+    }
+
+    @Test
+    public void rejectsTruncatedGzipTrailers() {
+        byte[] gzipped = compress(gzip, VALUE);
+        for(int missing = 1; missing <= 8; missing++) {
+            int length = gzipped.length - missing;
+            assertThrows("missing " + missing, DataFormatException.class, () -> decompress(gzipped, length, -1));
+            assertThrows("missing " + missing, DataFormatException.class,
+                    () -> decompress(gzipped, length, VALUE.length));
+        }
+        assertThrows(DataFormatException.class, () -> decompress(gzipped, 17, -1));
+    }
+
+    @Test
+    public void rejectsCorruptedGzipTrailers() {
+        byte[] gzipped = compress(gzip, VALUE);
+        int trailer = gzipped.length - 8;
+        byte[] checksum = Arrays.copyOf(gzipped, gzipped.length);
+        checksum[trailer] ^= 1;
+        assertFailure("gzip CRC32 does not match", checksum, -1);
+
+        byte[] size = Arrays.copyOf(gzipped, gzipped.length);
+        size[trailer + 4] ^= 1;
+        assertFailure("decompressed size does not match", size, -1);
+        assertFailure("does not match gzip size", size, VALUE.length);
+
+        byte[] negative = Arrays.copyOf(gzipped, gzipped.length);
+        negative[gzipped.length - 1] = (byte) 0x80;
+        assertFailure("exceeds", negative, -1);
+
+        byte[] large = Arrays.copyOf(gzipped, gzipped.length);
+        large[gzipped.length - 2] = 0x7f;
+        assertFailure("exceeds", large, -1);
+    }
+
+    @Test
+    public void rejectsCorruptedGzipHeaders() {
+        byte[] gzipped = compress(gzip, VALUE);
+        byte[] magic = Arrays.copyOf(gzipped, gzipped.length);
+        magic[0] = 0;
+        assertFailure("not in gzip format", magic, -1);
+
+        byte[] name = Arrays.copyOf(gzipped, gzipped.length);
+        name[3] = 8;
+        Arrays.fill(name, 10, name.length - 8, (byte) 1);
+        assertFailure("truncated gzip header", name, -1);
+    }
+
+    @Test
+    public void rejectsTruncatedDeflateBodies() {
+        byte[] deflated = compress(deflate, VALUE);
+        DataFormatException e = assertThrows(DataFormatException.class, () -> decompressor.decompress(deflated,
+                deflated.length / 2, SAPEnterpriseMessagingCompressor.DEFLATE, -1));
+        assertTrue(e.getMessage(), e.getMessage().contains("truncated compressed body"));
+        assertThrows(DataFormatException.class, () -> decompressor.decompress(deflated, deflated.length / 2,
+                SAPEnterpriseMessagingCompressor.DEFLATE, VALUE.length));
+    }
+
+    @Test
+    public void rejectsBodiesLargerThanTheMaximumSize() {
+        SAPEnterpriseMessagingCompressor small = new SAPEnterpriseMessagingCompressor(VALUE.length - 1);
+        try {
+            byte[] deflated = compress(deflate, VALUE);
+            assertThrows(DataFormatException.class, () -> small.decompress(deflated, deflated.length,
+                    SAPEnterpriseMessagingCompressor.DEFLATE, -1));
+            byte[] gzipped = compress(gzip, VALUE);
+            assertThrows(DataFormatException.class, () -> small.decompress(gzipped, gzipped.length,
+                    SAPEnterpriseMessagingCompressor.GZIP, -1));
+        } finally {
+            small.close();
+        }
+    }
+
+    private byte[] decompress(byte[] body, int length, int size) throws DataFormatException {
+        return decompressor.decompress(body, length, SAPEnterpriseMessagingCompressor.GZIP, size);
+    }
+
+    private void assertFailure(String reason, byte[] body, int size) {
+        DataFormatException e = assertThrows(DataFormatException.class, () -> decompress(body, body.length, size));
+        assertTrue(e.getMessage(), e.getMessage().contains(reason));
+    }
+
+    private static byte[] compress(SAPEnterpriseMessagingCompressor compressor, byte[] value) {
+        int length = compressor.compress(value);
+        return Arrays.copyOf(compressor.compressed(), length);
+    }
+
+    private static byte[] repeat(String text, int times) {
+        StringBuilder builder = new StringBuilder();
+        for(int i = 0; i < times; i++) {
+            builder.append(text);
+        }
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,110 @@
+package com.richemont.digital.pulsar;
+
+/*-
+ * #%L
+ * pulsar-sap-em-connector
+ * %%
+ * Copyright (C) 2020 Richemont SA
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SAPEnterpriseMessagingDeduplicatorTest {
+
+    // with 4 entries the table has 8 slots and a hash below 2^32 lands in the slot of its 3 lowest bits
+
+    @Test
+    public void evictionShiftsBackTheCollidingEntries() {
+        SAPEnterpriseMessagingDeduplicator deduplicator = new SAPEnterpriseMessagingDeduplicator(4, 60000);
+        // 1, 9 and 17 collide in slot 1 and probe to slots 2 and 3, pushing 2 from its slot 2 to slot 4
+        add(deduplicator, 1, 9, 17, 2);
+        // evicts 1, whose slot must be refilled by the entries probed past it
+        deduplicator.add(10);
+        assertEquals(4, deduplicator.size());
+        assertFalse(deduplicator.contains(1));
+        assertContains(deduplicator, 9, 17, 2, 10);
+        // evicts 9 and 17 in turn
+        add(deduplicator, 25, 33);
+        assertFalse(deduplicator.contains(9));
+        assertFalse(deduplicator.contains(17));
+        assertContains(deduplicator, 2, 10, 25, 33);
+    }
+
+    @Test
+    public void evictionShiftsBackAcrossTheEndOfTheTable() {
+        SAPEnterpriseMessagingDeduplicator deduplicator = new SAPEnterpriseMessagingDeduplicator(4, 60000);
+        // 7 and 15 collide in slot 7, 15 wraps around to slot 0, pushing 8 to slot 1
+        add(deduplicator, 7, 15, 8, 3);
+        deduplicator.add(4);
+        assertFalse(deduplicator.contains(7));
+        assertContains(deduplicator, 15, 8, 3, 4);
+        deduplicator.add(23);
+        assertFalse(deduplicator.contains(15));
+        assertContains(deduplicator, 8, 3, 4, 23);
+    }
+
+    @Test
+    public void addingTwiceKeepsOneEntry() {
+        SAPEnterpriseMessagingDeduplicator deduplicator = new SAPEnterpriseMessagingDeduplicator(2, 60000);
+        add(deduplicator, 1, 1, 2);
+        assertEquals(2, deduplicator.size());
+        assertContains(deduplicator, 1, 2);
+    }
+
+    @Test
+    public void forgetsEntriesAfterTheWindow() throws InterruptedException {
+        SAPEnterpriseMessagingDeduplicator deduplicator = new SAPEnterpriseMessagingDeduplicator(4, 50);
+        add(deduplicator, 1, 9);
+        assertContains(deduplicator, 1, 9);
+        Thread.sleep(100);
+        deduplicator.add(17);
+        assertFalse(deduplicator.contains(1));
+        assertFalse(deduplicator.contains(9));
+        assertContains(deduplicator, 17);
+        assertEquals(1, deduplicator.size());
+    }
+
+    @Test
+    public void hashesAreNeverEmpty() {
+        assertNotEquals(0, SAPEnterpriseMessagingDeduplicator.hash(""));
+        assertNotEquals(SAPEnterpriseMessagingDeduplicator.hash("topic:1"),
+                SAPEnterpriseMessagingDeduplicator.hash("topic:2"));
+    }
+
+    private static void add(SAPEnterpriseMessagingDeduplicator deduplicator, long... hashes) {
+        for(long hash : hashes) {
+            deduplicator.add(hash);
+        }
+    }
+
+    private static void assertContains(SAPEnterpriseMessagingDeduplicator deduplicator, long... hashes) {
+        for(long hash : hashes) {
+            assertTrue("missing " + hash, deduplicator.contains(hash));
+        }
+    }
+}
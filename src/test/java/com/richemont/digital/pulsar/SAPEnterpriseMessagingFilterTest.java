@@ -0,0 +1,139 @@
+package com.richemont.digital.pulsar;
+
+/*-
+ * #%L
+ * pulsar-sap-em-connector
+ * %%
+ * Copyright (C) 2020 Richemont SA
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+
+import org.junit.Test;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+import static com.richemont.digital.pulsar.TestMessages.message;
+import static com.richemont.digital.pulsar.TestMessages.properties;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class SAPEnterpriseMessagingFilterTest {
+
+    private static final Message ORDER = message(properties("JMSType", "order.created", "JMSPriority", 7,
+            "region", "CH", "source", "shop", "amount", 12.5, "count", 3L, "flag", true, "name", "O'Brien"));
+    private static final Message EMPTY = message(properties());
+
+    @Test
+    public void andBindsTighterThanOr() throws JMSException {
+        assertTrue(test("region = 'CH' OR region = 'EU' AND source = 'test'", ORDER));
+        assertFalse(test("(region = 'CH' OR region = 'EU') AND source = 'test'", ORDER));
+        assertTrue(test("NOT region = 'EU' AND source = 'shop'", ORDER));
+        assertTrue(test("NOT NOT region = 'CH'", ORDER));
+        assertTrue(test("((region = 'CH'))", ORDER));
+    }
+
+    @Test
+    public void keywordsAreCaseInsensitive() throws JMSException {
+        assertTrue(test("region in ('EU', 'CH') and not source like 'test%' or flag = FALSE", ORDER));
+        assertTrue(test("name is not null", ORDER));
+    }
+
+    @Test
+    public void missingPropertiesOnlyMatchIsNull() throws JMSException {
+        assertFalse(test("region = 'CH'", EMPTY));
+        assertFalse(test("region <> 'CH'", EMPTY));
+        assertFalse(test("region IN ('CH')", EMPTY));
+        assertFalse(test("region NOT IN ('CH')", EMPTY));
+        assertFalse(test("region LIKE '%'", EMPTY));
+        assertFalse(test("region NOT LIKE 'x%'", EMPTY));
+        assertFalse(test("amount < 1", EMPTY));
+        assertFalse(test("amount <> 1", EMPTY));
+        assertTrue(test("region IS NULL", EMPTY));
+        assertFalse(test("region IS NOT NULL", EMPTY));
+        assertTrue(test("NOT region = 'CH'", EMPTY));
+    }
+
+    @Test
+    public void comparesNumbersOfAnyType() throws JMSException {
+        assertTrue(test("amount = 12.5 AND count = 3 AND JMSPriority >= 7", ORDER));
+        assertTrue(test("amount < 1.3E1 AND amount > -1 AND count <= 3 AND count <> 4", ORDER));
+        assertTrue(test("amount > 1.2e-3", ORDER));
+        assertFalse(test("region > 1", ORDER));
+        assertFalse(test("region < 1", ORDER));
+        assertFalse(test("flag = 1", ORDER));
+    }
+
+    @Test
+    public void comparesStringsAndBooleansForEquality() throws JMSException {
+        assertTrue(test("JMSType = 'order.created' AND flag = TRUE AND flag <> false", ORDER));
+        assertTrue(test("name = 'O''Brien'", ORDER));
+        assertFalse(test("count = '3'", ORDER));
+        assertTrue(test("region <> 'EU'", ORDER));
+        assertTrue(test("region NOT IN ('EU', 'US')", ORDER));
+    }
+
+    @Test
+    public void likeMatchesPrefixesSuffixesAndInfixes() throws JMSException {
+        assertTrue(test("source LIKE 'sh%'", ORDER));
+        assertTrue(test("source LIKE '%op'", ORDER));
+        assertTrue(test("source LIKE '%ho%'", ORDER));
+        assertTrue(test("source LIKE 'shop'", ORDER));
+        assertTrue(test("source LIKE '%'", ORDER));
+        assertFalse(test("source LIKE 'hop'", ORDER));
+        assertFalse(test("source NOT LIKE 's%'", ORDER));
+        assertFalse(test("count LIKE '3'", ORDER));
+    }
+
+    @Test
+    public void rejectsInvalidExpressions() {
+        invalid("", "unexpected end");
+        invalid("region =", "unexpected end");
+        invalid("region = 'CH')", "unexpected ')'");
+        invalid("(region = 'CH'", "expected ')'");
+        invalid("'CH' = region", "expected an identifier");
+        invalid("region = 'CH", "unterminated string");
+        invalid("region ! 'CH'", "unexpected character '!'");
+        invalid("region < 'CH'", "only applies to numbers");
+        invalid("region = CH", "expected a literal");
+        invalid("region NOT = 'CH'", "expected IN or LIKE after NOT");
+        invalid("region IN ()", "expected a string");
+        invalid("region IN ('CH' 'EU')", "expected ')'");
+        invalid("region LIKE 'C%H'", "LIKE patterns only support %");
+        invalid("region LIKE 'C_'", "LIKE patterns only support %");
+        invalid("region IS 'CH'", "expected 'NULL'");
+        invalid("region = 'CH' AND", "unexpected end");
+    }
+
+    private static boolean test(String expression, Message message) throws JMSException {
+        return SAPEnterpriseMessagingFilter.compile(expression).test(message);
+    }
+
+    private static void invalid(String expression, String reason) {
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+                () -> SAPEnterpriseMessagingFilter.compile(expression));
+        assertTrue(e.getMessage(), e.getMessage().contains(reason));
+        assertEquals(0, e.getMessage().indexOf("invalid filter \"" + expression + "\""));
+    }
+}
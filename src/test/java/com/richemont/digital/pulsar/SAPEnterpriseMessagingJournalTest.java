@@ -0,0 +1,275 @@
+package com.richemont.digital.pulsar;
+
+/*-
+ * #%L
+ * pulsar-sap-em-connector
+ * %%
+ * Copyright (C) 2020 Richemont SA
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+
+import org.apache.pulsar.functions.api.Record;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SAPEnterpriseMessagingJournalTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SAPEnterpriseMessagingJournalTest.class);
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final SAPEnterpriseMessagingMetrics metrics =
+            new SAPEnterpriseMessagingMetrics(SAPEnterpriseMessagingMetrics.SINK, "test", "test", 0);
+    private final List<SAPEnterpriseMessagingJournal> journals = new ArrayList<>();
+
+    @After
+    public void close() throws InterruptedException {
+        for(SAPEnterpriseMessagingJournal journal : journals) {
+            journal.close();
+        }
+        metrics.close();
+    }
+
+    @Test
+    public void replaysTheRecordsInOrder() throws Exception {
+        SAPEnterpriseMessagingJournal journal = open(64 * 1024);
+        spill(journal, 0, 5);
+        for(int i = 0; i < 5; i++) {
+            SAPEnterpriseMessagingJournal.Entry entry = journal.next(1000);
+            assertRecord(i, entry);
+            entry.ack();
+        }
+        assertNull(journal.next(10));
+        assertTrue(journal.isEmpty());
+    }
+
+    @Test
+    public void replaysAFailedEntryAndTheEntriesAfterIt() throws Exception {
+        SAPEnterpriseMessagingJournal journal = open(64 * 1024);
+        spill(journal, 0, 4);
+        SAPEnterpriseMessagingJournal.Entry first = journal.next(1000);
+        SAPEnterpriseMessagingJournal.Entry second = journal.next(1000);
+        SAPEnterpriseMessagingJournal.Entry third = journal.next(1000);
+        second.fail();
+        assertNull("nothing is read while entries are in flight", journal.next(10));
+        third.ack();
+        first.ack();
+        for(int i = 1; i < 4; i++) {
+            SAPEnterpriseMessagingJournal.Entry entry = journal.next(1000);
+            assertRecord(i, entry);
+            entry.ack();
+        }
+        assertTrue(journal.isEmpty());
+    }
+
+    @Test
+    public void rollsOverSegmentsAndDeletesTheDeliveredOnes() throws Exception {
+        SAPEnterpriseMessagingJournal journal = open(256);
+        spill(journal, 0, 6);
+        assertEquals(6, segments().length);
+        for(int i = 0; i < 6; i++) {
+            SAPEnterpriseMessagingJournal.Entry entry = journal.next(1000);
+            assertRecord(i, entry);
+            entry.ack();
+        }
+        journal.close();
+        assertEquals("the segment written to is kept", 1, segments().length);
+    }
+
+    @Test
+    public void refusesRecordsOnceFull() throws Exception {
+        SAPEnterpriseMessagingJournal journal = open(256, 3 * 256);
+        spill(journal, 0, 3);
+        assertFalse(journal.spill(record(3, null), "queue:test"));
+        SAPEnterpriseMessagingJournal.Entry entry = journal.next(1000);
+        assertFalse("entries are not spilled again", journal.spill(entry, "queue:test"));
+        entry.ack();
+        spill(journal, 3, 1);
+        assertEquals(3, journal.size());
+    }
+
+    @Test
+    public void recoversTheUndeliveredRecordsAfterACrash() throws Exception {
+        SAPEnterpriseMessagingJournal crashed = open(256);
+        spill(crashed, 0, 6);
+        for(int i = 0; i < 2; i++) {
+            crashed.next(1000).ack();
+        }
+        // delivered but not acked before the crash, so it is replayed
+        crashed.next(1000);
+        // closing only stops the flusher, leaving the segments as they would be after a crash
+        crashed.close();
+
+        SAPEnterpriseMessagingJournal journal = open(256);
+        assertEquals(4, journal.size());
+        for(int i = 2; i < 6; i++) {
+            SAPEnterpriseMessagingJournal.Entry entry = journal.next(1000);
+            assertRecord(i, entry);
+            entry.ack();
+        }
+        assertNull(journal.next(10));
+        spill(journal, 6, 1);
+        assertRecord(6, journal.next(1000));
+    }
+
+    @Test
+    public void stopsRecoveringAtACorruptedEntry() throws Exception {
+        SAPEnterpriseMessagingJournal journal = open(64 * 1024);
+        spill(journal, 0, 3);
+        journal.close();
+        journals.clear();
+
+        File segment = segments()[0];
+        try(RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            int second = 8 + file.readInt();
+            file.seek(second + 8 + 1);
+            int payload = file.read();
+            file.seek(second + 8 + 1);
+            file.write(payload ^ 1);
+        }
+
+        journal = open(64 * 1024);
+        assertEquals(1, journal.size());
+        assertRecord(0, journal.next(1000));
+        assertNull(journal.next(10));
+    }
+
+    @Test
+    public void stopsRecoveringAtATornEntry() throws Exception {
+        SAPEnterpriseMessagingJournal journal = open(64 * 1024);
+        spill(journal, 0, 2);
+        journal.close();
+        journals.clear();
+
+        File segment = segments()[0];
+        try(RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            int second = 8 + file.readInt();
+            file.seek(second);
+            file.writeInt(Integer.MAX_VALUE);
+        }
+
+        journal = open(64 * 1024);
+        assertEquals(1, journal.size());
+        assertRecord(0, journal.next(1000));
+        assertNull(journal.next(10));
+    }
+
+    private SAPEnterpriseMessagingJournal open(int segmentBytes) throws IOException {
+        return open(segmentBytes, 1024 * 1024);
+    }
+
+    private SAPEnterpriseMessagingJournal open(int segmentBytes, long maxBytes) throws IOException {
+        SAPEnterpriseMessagingJournal journal = new SAPEnterpriseMessagingJournal(new File(folder.getRoot(), "spill"),
+                segmentBytes, maxBytes, metrics, LOG);
+        journals.add(journal);
+        return journal;
+    }
+
+    private File[] segments() {
+        File[] files = new File(folder.getRoot(), "spill").listFiles();
+        Arrays.sort(files);
+        return files;
+    }
+
+    /**
+     * Spills the records and waits for them to be acked, i.e. to be on disk.
+     */
+    private static void spill(SAPEnterpriseMessagingJournal journal, int from, int count) throws InterruptedException {
+        CountDownLatch acked = new CountDownLatch(count);
+        for(int i = from; i < from + count; i++) {
+            assertTrue(journal.spill(record(i, acked), "queue:test"));
+        }
+        assertTrue(acked.await(5, TimeUnit.SECONDS));
+    }
+
+    private static void assertRecord(int index, SAPEnterpriseMessagingJournal.Entry entry) {
+        Record<byte[]> expected = record(index, null);
+        assertEquals("queue:test", entry.destination);
+        assertEquals(expected.getKey(), entry.getKey());
+        assertEquals(expected.getPartitionId(), entry.getPartitionId());
+        assertEquals(expected.getRecordSequence(), entry.getRecordSequence());
+        assertEquals(expected.getProperties(), entry.getProperties());
+        assertEquals(new String(expected.getValue(), StandardCharsets.UTF_8),
+                new String(entry.getValue(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return a record of about 100 bytes, so that a 256 bytes segment holds a single one
+     */
+    private static Record<byte[]> record(int index, CountDownLatch acked) {
+        return new Record<byte[]>() {
+
+            @Override
+            public Optional<String> getKey() {
+                return index % 2 == 0 ? Optional.of("key-" + index) : Optional.empty();
+            }
+
+            @Override
+            public byte[] getValue() {
+                return String.format("%-100d", index).getBytes(StandardCharsets.UTF_8);
+            }
+
+            @Override
+            public Optional<String> getPartitionId() {
+                return Optional.of("persistent://public/default/orders-partition-0");
+            }
+
+            @Override
+            public Optional<Long> getRecordSequence() {
+                return Optional.of((long) index);
+            }
+
+            @Override
+            public Map<String, String> getProperties() {
+                return Collections.singletonMap("index", String.valueOf(index));
+            }
+
+            @Override
+            public void ack() {
+                acked.countDown();
+            }
+        };
+    }
+}
@@ -0,0 +1,205 @@
+package com.richemont.digital.pulsar;
+
+/*-
+ * #%L
+ * pulsar-sap-em-connector
+ * %%
+ * Copyright (C) 2020 Richemont SA
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+
+import org.junit.After;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static com.richemont.digital.pulsar.TestMessages.properties;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class SAPEnterpriseMessagingReassemblerTest {
+
+    private static final byte[] RECORD = "0123456789".getBytes(StandardCharsets.UTF_8);
+    private static final int REJECTED = 2;
+
+    private final SAPEnterpriseMessagingMetrics metrics =
+            new SAPEnterpriseMessagingMetrics(SAPEnterpriseMessagingMetrics.SOURCE, "test", "test", 0);
+    private final SAPEnterpriseMessagingAcknowledger acknowledger = acknowledger();
+    private final SAPEnterpriseMessagingReassembler reassembler = new SAPEnterpriseMessagingReassembler(100, 200,
+            metrics, LoggerFactory.getLogger(SAPEnterpriseMessagingReassemblerTest.class));
+
+    @After
+    public void clear() {
+        reassembler.clear();
+        metrics.close();
+    }
+
+    @Test
+    public void reassemblesChunksReceivedOutOfOrder() throws JMSException {
+        assertNull(add("a", 2));
+        assertNull(add("a", 0));
+        assertEquals(RECORD.length, reassembler.bytes());
+        SAPEnterpriseMessagingReassembler.Group group = add("a", 1);
+        assertNotNull(group);
+        assertArrayEquals(RECORD, group.body);
+        assertEquals(3, group.chunks.size());
+        assertEquals(0, reassembler.bytes());
+    }
+
+    @Test
+    public void reassemblesInterleavedGroups() throws JMSException {
+        assertNull(add("a", 0));
+        assertNull(add("b", 2));
+        assertNull(add("b", 1));
+        assertNull(add("a", 1));
+        assertEquals(2 * RECORD.length, reassembler.bytes());
+        assertArrayEquals(RECORD, add("b", 0).body);
+        assertArrayEquals(RECORD, add("a", 2).body);
+        assertEquals(0, reassembler.bytes());
+    }
+
+    @Test
+    public void settlesDuplicateChunksWithTheirGroup() throws JMSException {
+        BytesMessage first = chunk("a", 0, 3, 0, RECORD.length, Arrays.copyOfRange(RECORD, 0, 4));
+        BytesMessage duplicate = chunk("a", 0, 3, 0, RECORD.length, new byte[4]);
+        assertNull(reassembler.add(acknowledger, first));
+        assertNull(reassembler.add(acknowledger, duplicate));
+        assertNull(add("a", 1));
+        assertNull(add("a", 1));
+        SAPEnterpriseMessagingReassembler.Group group = add("a", 2);
+        assertArrayEquals("the first copy of a chunk is kept", RECORD, group.body);
+        assertEquals(5, group.chunks.size());
+
+        group.ack();
+        settle();
+        assertTrue(acknowledged(first));
+        assertTrue(acknowledged(duplicate));
+        assertFalse(first.propertyExists("JMS_AMQP_ACK_TYPE"));
+    }
+
+    @Test
+    public void rejectsInvalidChunks() {
+        invalid(chunk("a", 3, 3, 8, 10, new byte[2]));
+        invalid(chunk("a", -1, 3, 0, 10, new byte[4]));
+        invalid(chunk("a", 0, 3, 8, 10, new byte[4]));
+        invalid(chunk("a", 0, 3, -1, 10, new byte[4]));
+        invalid(chunk("a", 0, 11, 0, 10, new byte[0]));
+        invalid(chunk("a", 0, 4, 0, 10, new byte[4]));
+        invalid(chunk("a", 0, Integer.MAX_VALUE, 0, 10, new byte[1]));
+        invalid(chunk("a", 0, 2, 0, 101, new byte[60]));
+        assertEquals(0, reassembler.bytes());
+    }
+
+    @Test
+    public void refusesNewGroupsWhileFull() throws JMSException {
+        for(int i = 0; i < 10; i++) {
+            assertNull(add("g" + i, 0));
+        }
+        assertThrows(IllegalStateException.class, () -> add("full", 0));
+        assertNull(add("g0", 1));
+        assertNotNull(add("g0", 2));
+        assertNull(add("next", 0));
+    }
+
+    @Test
+    public void replacesAGroupWithAMismatchingChunk() throws JMSException {
+        BytesMessage stale = chunk("a", 0, 3, 0, RECORD.length, Arrays.copyOfRange(RECORD, 0, 4));
+        assertNull(reassembler.add(acknowledger, stale));
+        assertNull(reassembler.add(acknowledger, chunk("a", 0, 2, 0, 8, Arrays.copyOfRange(RECORD, 0, 4))));
+        assertEquals(8, reassembler.bytes());
+        settle();
+        assertEquals(REJECTED, stale.getIntProperty("JMS_AMQP_ACK_TYPE"));
+        SAPEnterpriseMessagingReassembler.Group group =
+                reassembler.add(acknowledger, chunk("a", 1, 2, 4, 8, Arrays.copyOfRange(RECORD, 4, 8)));
+        assertArrayEquals(Arrays.copyOf(RECORD, 8), group.body);
+        assertEquals(2, group.chunks.size());
+    }
+
+    @Test
+    public void dropsExpiredGroups() throws JMSException, InterruptedException {
+        BytesMessage chunk = chunk("a", 0, 3, 0, RECORD.length, Arrays.copyOfRange(RECORD, 0, 4));
+        assertNull(reassembler.add(acknowledger, chunk));
+        long deadline = System.currentTimeMillis() + 5000;
+        while(reassembler.bytes() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, reassembler.bytes());
+        settle();
+        assertTrue(acknowledged(chunk));
+        assertEquals(REJECTED, chunk.getIntProperty("JMS_AMQP_ACK_TYPE"));
+        // a late chunk starts over
+        assertNull(add("a", 1));
+        assertEquals(RECORD.length, reassembler.bytes());
+    }
+
+    private SAPEnterpriseMessagingReassembler.Group add(String id, int index) throws JMSException {
+        int offset = index * 4;
+        byte[] body = Arrays.copyOfRange(RECORD, offset, Math.min(offset + 4, RECORD.length));
+        return reassembler.add(acknowledger, chunk(id, index, 3, offset, RECORD.length, body));
+    }
+
+    private void invalid(BytesMessage chunk) {
+        assertThrows(chunk.toString(), IllegalArgumentException.class, () -> reassembler.add(acknowledger, chunk));
+    }
+
+    private void settle() throws JMSException {
+        try {
+            acknowledger.settle(0);
+        } catch(InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static boolean acknowledged(Message message) throws JMSException {
+        return message.propertyExists(TestMessages.ACKNOWLEDGED);
+    }
+
+    private static BytesMessage chunk(String id, int index, int count, int offset, int size, byte[] body) {
+        return TestMessages.bytes(body, properties(
+                SAPEnterpriseMessagingReassembler.CHUNK_ID, id,
+                SAPEnterpriseMessagingReassembler.CHUNK_INDEX, index,
+                SAPEnterpriseMessagingReassembler.CHUNK_COUNT, count,
+                SAPEnterpriseMessagingReassembler.CHUNK_OFFSET, offset,
+                SAPEnterpriseMessagingReassembler.CHUNK_TOTAL_SIZE, size));
+    }
+
+    private SAPEnterpriseMessagingAcknowledger acknowledger() {
+        try {
+            SAPEnterpriseMessagingConfig config = SAPEnterpriseMessagingConfig.load(properties(
+                    "ackMode", SAPEnterpriseMessagingAcknowledger.INDIVIDUAL, "ackBatchSize", 1));
+            return new SAPEnterpriseMessagingAcknowledger(null, config, metrics);
+        } catch(IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
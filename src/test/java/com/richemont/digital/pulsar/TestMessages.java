@@ -0,0 +1,115 @@
+package com.richemont.digital.pulsar;
+
+/*-
+ * #%L
+ * pulsar-sap-em-connector
+ * %%
+ * Copyright (C) 2020 Richemont SA
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+
+import javax.jms.BytesMessage;
+import javax.jms.Message;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Minimal JMS messages for the tests, backed by a map of headers and properties and an optional bytes body.
+ */
+final class TestMessages {
+
+    /** Property set on a message once it has been acknowledged. */
+    static final String ACKNOWLEDGED = "TestAcknowledged";
+
+    private TestMessages() {
+    }
+
+    static Message message(Map<String, Object> properties) {
+        return proxy(Message.class, properties, null);
+    }
+
+    static BytesMessage bytes(byte[] body, Map<String, Object> properties) {
+        return proxy(BytesMessage.class, properties, body);
+    }
+
+    static Map<String, Object> properties(Object... keysAndValues) {
+        Map<String, Object> properties = new HashMap<>();
+        for(int i = 0; i < keysAndValues.length; i += 2) {
+            properties.put((String) keysAndValues[i], keysAndValues[i + 1]);
+        }
+        return properties;
+    }
+
+    private static <M extends Message> M proxy(Class<M> type, Map<String, Object> values, byte[] body) {
+        Map<String, Object> properties = new HashMap<>(values);
+        int[] position = {0};
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            switch(method.getName()) {
+                case "getJMSMessageID":
+                    return "ID:" + System.identityHashCode(proxy);
+                case "getJMSType":
+                    return properties.get("JMSType");
+                case "getJMSCorrelationID":
+                    return properties.get("JMSCorrelationID");
+                case "getJMSPriority":
+                    return properties.getOrDefault("JMSPriority", Message.DEFAULT_PRIORITY);
+                case "propertyExists":
+                    return properties.containsKey(args[0]);
+                case "getObjectProperty":
+                    return properties.get(args[0]);
+                case "getStringProperty":
+                    Object value = properties.get(args[0]);
+                    return value == null ? null : value.toString();
+                case "getIntProperty":
+                    return Integer.valueOf(String.valueOf(properties.get(args[0])));
+                case "setIntProperty":
+                case "setStringProperty":
+                case "setObjectProperty":
+                    properties.put((String) args[0], args[1]);
+                    return null;
+                case "getBodyLength":
+                    return (long) body.length;
+                case "readBytes":
+                    byte[] target = (byte[]) args[0];
+                    int length = Math.min(args.length > 1 ? (Integer) args[1] : target.length, body.length - position[0]);
+                    if(length <= 0) {
+                        return -1;
+                    }
+                    System.arraycopy(body, position[0], target, 0, length);
+                    position[0] += length;
+                    return length;
+                case "acknowledge":
+                    properties.put(ACKNOWLEDGED, true);
+                    return null;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return type.getSimpleName() + properties;
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        }));
+    }
+}